@@ -11,6 +11,8 @@ import server.utils.EnhancedLogger;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -47,6 +49,8 @@ public class MailServer {
         this.userManager = new UserManager();
         this.messageManager = new MessageManager();
         this.sessionManager = new SessionManager();
+        // HELO starts warming the user's mailboxes while the client sends AUTH
+        sessionManager.addSessionListener(messageManager::prefetchUserMailboxes);
 
         this.threadPool = Executors.newCachedThreadPool();
         this.maintenanceScheduler = Executors.newScheduledThreadPool(3);
@@ -140,8 +144,42 @@ public class MailServer {
             }
         }, 1, 1, TimeUnit.HOURS);
 
+        maintenanceScheduler.scheduleAtFixedRate(() -> {
+            int compacted = messageManager.compactIfNeeded();
+            if (compacted > 0) {
+                logger.log("🗜️ Compacted " + compacted + " mailbox files");
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+
+        maintenanceScheduler.scheduleAtFixedRate(() -> {
+            int moved = messageManager.moveArchivedToCold();
+            if (moved > 0) {
+                logger.log("🧊 Moved " + moved + " archived messages to cold storage");
+            }
+        }, 2, 5, TimeUnit.MINUTES);
+
+        maintenanceScheduler.scheduleAtFixedRate(() -> {
+            Set<String> online = new HashSet<>();
+            sessionManager.getAllActiveSessions().forEach(session -> online.add(session.getUsername().toLowerCase()));
+            int evicted = messageManager.evictIdleMailboxes(online::contains);
+            if (evicted > 0) {
+                logger.log("💤 Evicted " + evicted + " idle mailboxes from memory");
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+
+        maintenanceScheduler.scheduleAtFixedRate(() -> {
+            int imported = messageManager.importDropped();
+            if (imported > 0) {
+                logger.log("📥 Imported " + imported + " messages from data/import");
+                serverGUI.log("📥 Imported " + imported + " messages");
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+
         maintenanceScheduler.scheduleAtFixedRate(() -> {
             logger.printStatistics();
+            logger.log("📊 Body storage: " + messageManager.getBodyCompressionSummary());
+            logger.log("📊 Cold storage: " + messageManager.getColdStorageSummary());
+            logger.log("📊 Mailbox cache: " + messageManager.getMailboxCacheSummary());
         }, 5, 5, TimeUnit.MINUTES);
 
         logger.log("🔄 Maintenance tasks scheduled");
@@ -215,6 +253,10 @@ public class MailServer {
                 maintenanceScheduler.shutdownNow();
             }
 
+            if (messageManager != null) {
+                messageManager.close();
+            }
+
             if (logger != null) {
                 logger.close();
             }
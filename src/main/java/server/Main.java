@@ -22,7 +22,6 @@ public class Main {
                 "users.dat",
                 "messages.dat",
                 "data/users.dat",
-                "data/messages.dat",
                 "data/users.json",
                 "users.json"
         };
@@ -1,20 +1,39 @@
 package server.handlers;
 
 import server.gui.ServerGUI;
+import server.storage.MailboxExporter;
 import server.storage.UserManager;
 import server.storage.MessageManager;
 import server.storage.SessionManager;
 import server.udp.UDPNotifier;
 import server.utils.EnhancedLogger;
+import server.models.MailboxEntry;
 import server.models.UserSession;
+import server.utils.Config;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class EnhancedClientHandler implements Runnable {
+    private static final byte[] LIST_PREFIX = "213 ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END_OF_RETR = ("214 END" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+
     private final Socket clientSocket;
     private final BufferedReader in;
     private final PrintWriter out;
+    // same socket as out, for lines that are already encoded; out autoflushes,
+    // so the two never interleave within a line
+    private final BufferedOutputStream rawOut;
     private UserSession currentSession = null;
 
     private final UserManager userManager;
@@ -38,6 +57,7 @@ public class EnhancedClientHandler implements Runnable {
 
         this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.rawOut = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
     }
 
     private void logToGUI(String msg) {
@@ -84,6 +104,7 @@ public class EnhancedClientHandler implements Runnable {
                 case "HELO" -> handleHelo(parts.length > 1 ? parts[1] : "");
                 case "AUTH" -> handleAuth(parts.length > 1 ? parts[1] : "");
                 case "LIST" -> { if (isAuthenticated()) handleList(cmd); }
+                case "SEARCH" -> { if (isAuthenticated()) handleSearch(parts.length > 1 ? parts[1] : ""); }
                 case "SEND" -> { if (isAuthenticated()) handleSend(); }
                 case "RETR" -> { if (isAuthenticated()) handleRetr(parts.length > 1 ? parts[1] : ""); }
                 case "DELE" -> { if (isAuthenticated()) handleDele(parts.length > 1 ? parts[1] : ""); }
@@ -220,10 +241,17 @@ public class EnhancedClientHandler implements Runnable {
         in.readLine();
 
         String body = new String(bodyChars, 0, totalRead);
-        String messageId = messageManager.saveMessage(from, to, subject, body);
+        MessageManager.SaveResult saved = messageManager.saveMessage(from, to, subject, body);
+        String messageId = saved.messageId();
 
         if (messageId != null) {
-            out.println("250 MSGID " + messageId);
+            // 252 when some mailboxes could not take the message; the rest have it,
+            // so resending to everyone would duplicate it
+            if (saved.failed().isEmpty()) {
+                out.println("250 MSGID " + messageId);
+            } else {
+                out.println("252 MSGID " + messageId + " FAILED:" + String.join(",", saved.failed()));
+            }
 
             logger.logSend(from, to, messageId, bodyLen);
             logToGUI("📤 Message sent: " + from + " -> " + to);
@@ -231,7 +259,7 @@ public class EnhancedClientHandler implements Runnable {
             if (udpNotifier != null) {
                 for (String recipient : to.split(",")) {
                     String rec = recipient.trim();
-                    if (!rec.isEmpty()) {
+                    if (!rec.isEmpty() && !saved.failed().contains(rec.toLowerCase())) {
                         int unread = messageManager.getUnreadCount(rec);
                         udpNotifier.sendNotification(rec, unread);
                     }
@@ -251,15 +279,22 @@ public class EnhancedClientHandler implements Runnable {
             else if (cmd.contains("SENT")) folder = "SENT";
             else if (cmd.contains("ARCHIVE")) folder = "ARCHIVE";
 
+            if (cmd.toUpperCase().contains(" LIMIT ")) {
+                handleListPage(cmd);
+                return;
+            }
+            if (cmd.toUpperCase().contains(" CHANGEDSINCE ")) {
+                handleListChanges(cmd, folder);
+                return;
+            }
+
             String username = currentSession.getUsername();
             var messages = messageManager.listMessages(username, folder);
 
             logger.logList(username, folder, messages.size());
 
             out.println("213 " + messages.size());
-            for (String m : messages) {
-                out.println("213 " + m);
-            }
+            writeListLines(messages);
             out.println("213 END");
 
             logToGUI("📋 LIST " + folder + " for " + username + ": " + messages.size() + " messages");
@@ -270,31 +305,192 @@ public class EnhancedClientHandler implements Runnable {
         }
     }
 
-    private void handleRetr(String params) {
-        String messageId = params.trim();
+    // LIST <folder> LIMIT n [AFTER <cursor>]: one page, plus "213 NEXT <cursor>"
+    // when more messages follow.
+    private void handleListPage(String cmd) throws IOException {
+        String[] tokens = cmd.trim().split("\\s+");
+        // cursors are opaque, so only the token after LIST may name the folder
+        String folder = "INBOX";
+        if (tokens[1].matches("(?i)ALL|UNREAD|SENT|ARCHIVE|INBOX")) {
+            folder = tokens[1].toUpperCase();
+        }
+
+        int limit = -1;
+        String cursor = null;
+        for (int i = 1; i < tokens.length - 1; i++) {
+            if (tokens[i].equalsIgnoreCase("LIMIT")) {
+                try {
+                    limit = Integer.parseInt(tokens[i + 1]);
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+            } else if (tokens[i].equalsIgnoreCase("AFTER")) {
+                cursor = tokens[i + 1];
+            }
+        }
+
+        if (limit <= 0 || limit > Config.LIST_PAGE_MAX) {
+            out.println("501 SYNTAX ERROR: LIMIT must be 1-" + Config.LIST_PAGE_MAX);
+            return;
+        }
+
         String username = currentSession.getUsername();
+        MessageManager.ListPage page;
+        try {
+            page = messageManager.listMessages(username, folder, limit, cursor);
+        } catch (IllegalArgumentException e) {
+            out.println("501 SYNTAX ERROR: BAD CURSOR");
+            return;
+        }
+
+        logger.logList(username, folder, page.lines().size());
+
+        out.println("213 " + page.lines().size());
+        writeListLines(page.lines());
+        if (page.nextCursor() != null) {
+            out.println("213 NEXT " + page.nextCursor());
+        }
+        out.println("213 END");
+    }
+
+    private void writeListLines(List<byte[]> lines) throws IOException {
+        for (byte[] line : lines) {
+            rawOut.write(LIST_PREFIX);
+            rawOut.write(line);
+            rawOut.write(NEWLINE);
+        }
+        rawOut.flush();
+    }
 
-        String data = messageManager.getMessage(messageId, username);
-        if (data != null) {
-            String[] lines = data.split("\n");
-            for (String line : lines) {
-                out.println(line);
+    // LIST <folder> CHANGEDSINCE <modseq>: entries added or changed since then
+    // as "213 CHANGED <flags> <list line>", removals as "213 EXPUNGED <id>", and
+    // the modseq to send next time as "213 MODSEQ <n>".
+    private void handleListChanges(String cmd, String folder) {
+        String[] tokens = cmd.trim().split("\\s+");
+        long since = -1;
+        for (int i = 1; i < tokens.length - 1; i++) {
+            if (tokens[i].equalsIgnoreCase("CHANGEDSINCE")) {
+                try {
+                    since = Long.parseLong(tokens[i + 1]);
+                } catch (NumberFormatException e) {
+                    since = -1;
+                }
             }
-            out.println("214 END");
+        }
+        if (since < 0) {
+            out.println("501 SYNTAX ERROR: CHANGEDSINCE needs a modseq");
+            return;
+        }
 
-            logger.logRetr(username, messageId);
-            logToGUI("📥 RETR " + messageId + " for " + username);
-        } else {
+        String username = currentSession.getUsername();
+        MessageManager.ChangeSet changes = messageManager.listChanges(username, folder, since);
+        if (changes == null) {
+            out.println("550 MODSEQ TOO OLD - LIST AGAIN");
+            return;
+        }
+
+        logger.logList(username, folder, changes.changed().size());
+
+        out.println("213 " + (changes.changed().size() + changes.expunged().size()));
+        for (String line : changes.changed()) {
+            out.println("213 CHANGED " + line);
+        }
+        for (String id : changes.expunged()) {
+            out.println("213 EXPUNGED " + id);
+        }
+        out.println("213 MODSEQ " + changes.modSeq());
+        out.println("213 END");
+    }
+
+    // SEARCH <folder> [NEWEST] <terms>: messages holding every term in their
+    // subject, sender or body as LIST lines, best match first unless NEWEST.
+    private void handleSearch(String params) {
+        String[] tokens = params.trim().split("\\s+", 2);
+        if (tokens.length < 2 || !tokens[0].matches("(?i)ALL|UNREAD|SENT|ARCHIVE|INBOX")) {
+            out.println("501 SYNTAX ERROR: SEARCH <folder> [NEWEST] <terms>");
+            return;
+        }
+        String folder = tokens[0].toUpperCase();
+        String query = tokens[1];
+        boolean byDate = false;
+        if (query.toUpperCase().startsWith("NEWEST ")) {
+            byDate = true;
+            query = query.substring(7).trim();
+        }
+
+        String username = currentSession.getUsername();
+        var results = messageManager.searchMessages(username, folder, query, byDate);
+
+        out.println("215 " + results.size());
+        for (String line : results) {
+            out.println("215 " + line);
+        }
+        out.println("215 END");
+
+        logToGUI("🔎 SEARCH " + folder + " for " + username + ": " + results.size() + " matches");
+    }
+
+    // Headers and body go through rawOut with a single flush; the body is
+    // copied from its segment without being decoded into a String. Once the
+    // headers are out nothing else can be answered on this connection, so a
+    // body that fails to read part-way drops it. The message is only marked
+    // read once all of it has been sent.
+    private void handleRetr(String params) throws IOException {
+        String messageId = params.trim();
+        String username = currentSession.getUsername();
+
+        MailboxEntry msg = messageManager.retrieveMessage(messageId, username);
+        if (msg == null) {
             out.println("550 MESSAGE NOT FOUND");
             logger.log("❌ RETR failed - Message not found: " + messageId);
+            return;
+        }
+        if (!messageManager.hasBody(msg)) {
+            out.println("550 MESSAGE BODY UNAVAILABLE");
+            logger.logError("RETR", "Body of " + messageId + " is missing from the body store");
+            return;
+        }
+
+        String nl = System.lineSeparator();
+        String headers = "214 FROM:" + msg.getFrom() + nl +
+                "214 TO:" + msg.getToAsString() + nl +
+                "214 SUBJ:" + msg.getSubject() + nl +
+                "214 TIMESTAMP:" + msg.getTimestamp() + nl +
+                "214 BODYLEN:" + msg.getContent().getBodyLength() + nl +
+                "214 BODY" + nl;
+        try {
+            rawOut.write(headers.getBytes(StandardCharsets.UTF_8));
+            messageManager.writeBody(msg, rawOut);
+            rawOut.write(END_OF_RETR);
+            rawOut.flush();
+        } catch (IOException | RuntimeException e) {
+            logger.logError("RETR", "Failed to send " + messageId + " - closing connection: " + e.getMessage());
+            clientSocket.close();
+            return;
         }
+        messageManager.markRetrieved(messageId, username);
+
+        logger.logRetr(username, messageId);
+        logToGUI("📥 RETR " + messageId + " for " + username);
     }
 
     private void handleDele(String params) {
+        if (isBulk(params)) {
+            handleBulk("DELE", params);
+            return;
+        }
         String messageId = params.trim();
         String username = currentSession.getUsername();
 
-        if (messageManager.archiveMessage(messageId, username)) {
+        boolean done;
+        try {
+            done = messageManager.archiveMessage(messageId, username);
+        } catch (UncheckedIOException e) {
+            out.println("550 ARCHIVE FAILED");
+            logger.logError("DELE", "Could not log the change to " + messageId + ": " + e.getCause().getMessage());
+            return;
+        }
+        if (done) {
             out.println("250 MESSAGE ARCHIVED");
 
             logger.logDele(username, messageId, true);
@@ -306,10 +502,22 @@ public class EnhancedClientHandler implements Runnable {
     }
 
     private void handleRestore(String params) {
+        if (isBulk(params)) {
+            handleBulk("RESTORE", params);
+            return;
+        }
         String messageId = params.trim();
         String username = currentSession.getUsername();
 
-        if (messageManager.restoreMessage(messageId, username)) {
+        boolean done;
+        try {
+            done = messageManager.restoreMessage(messageId, username);
+        } catch (UncheckedIOException e) {
+            out.println("550 RESTORE FAILED");
+            logger.logError("RESTORE", "Could not log the change to " + messageId + ": " + e.getCause().getMessage());
+            return;
+        }
+        if (done) {
             out.println("250 MESSAGE RESTORED");
 
             logger.logRestore(username, messageId);
@@ -321,10 +529,22 @@ public class EnhancedClientHandler implements Runnable {
     }
 
     private void handleMark(String params) {
+        if (isBulk(params)) {
+            handleBulk("MARK", params);
+            return;
+        }
         String messageId = params.trim();
         String username = currentSession.getUsername();
 
-        if (messageManager.markAsRead(messageId, username)) {
+        boolean done;
+        try {
+            done = messageManager.markAsRead(messageId, username);
+        } catch (UncheckedIOException e) {
+            out.println("550 MARK FAILED");
+            logger.logError("MARK", "Could not log the change to " + messageId + ": " + e.getCause().getMessage());
+            return;
+        }
+        if (done) {
             out.println("250 MESSAGE MARKED AS READ");
             logToGUI("📌 Marked as read: " + messageId);
         } else {
@@ -332,6 +552,69 @@ public class EnhancedClientHandler implements Runnable {
         }
     }
 
+    // DELE/RESTORE/MARK also take "id1,id2,...", a range "first:last" or
+    // "ALL <folder>", and answer "216 <n>", one "216 <id> OK|NOT FOUND" per ID
+    // and "216 END".
+    private static boolean isBulk(String params) {
+        String p = params.trim();
+        return p.contains(",") || p.contains(":") || p.toUpperCase().startsWith("ALL ");
+    }
+
+    private void handleBulk(String command, String params) {
+        String p = params.trim();
+        String username = currentSession.getUsername();
+        List<String> ids;
+        try {
+            if (p.toUpperCase().startsWith("ALL ")) {
+                String folder = p.substring(4).trim().toUpperCase();
+                if (!folder.matches("ALL|UNREAD|SENT|ARCHIVE|INBOX")) {
+                    out.println("501 SYNTAX ERROR: UNKNOWN FOLDER");
+                    return;
+                }
+                ids = messageManager.folderMessageIds(username, folder);
+            } else if (p.contains(":")) {
+                String[] range = p.split(":", 2);
+                ids = messageManager.rangeMessageIds(username, range[0].trim(), range[1].trim());
+            } else {
+                ids = new ArrayList<>();
+                for (String id : p.split(",")) {
+                    if (!id.trim().isEmpty()) ids.add(id.trim());
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("501 SYNTAX ERROR: BAD MESSAGE ID");
+            return;
+        }
+
+        Map<String, Boolean> results;
+        try {
+            results = switch (command) {
+                case "DELE" -> messageManager.archiveMessages(ids, username);
+                case "RESTORE" -> messageManager.restoreMessages(ids, username);
+                default -> messageManager.markAsRead(ids, username);
+            };
+        } catch (UncheckedIOException e) {
+            out.println("550 " + command + " FAILED");
+            logger.logError(command, "Could not log the changes: " + e.getCause().getMessage());
+            return;
+        }
+
+        // one write for the whole reply rather than a flush per line
+        int done = 0;
+        String newline = System.lineSeparator();
+        StringBuilder reply = new StringBuilder("216 ").append(results.size()).append(newline);
+        for (Map.Entry<String, Boolean> result : results.entrySet()) {
+            reply.append("216 ").append(result.getKey()).append(result.getValue() ? " OK" : " NOT FOUND").append(newline);
+            if (result.getValue()) done++;
+        }
+        reply.append("216 END").append(newline);
+        out.print(reply);
+        out.flush();
+
+        logger.log("📦 " + command + " " + done + "/" + results.size() + " messages for " + username);
+        logToGUI("📦 " + command + " " + done + "/" + results.size() + " messages for " + username);
+    }
+
     private void handleSetStat(String params) {
         String status = params.toUpperCase().trim();
         String username = currentSession.getUsername();
@@ -378,23 +661,146 @@ public class EnhancedClientHandler implements Runnable {
             String username = currentSession.getUsername();
             int unread = messageManager.getUnreadCount(username);
             int storage = messageManager.getStorageUsed(username);
+            int physical = messageManager.getPhysicalStorageUsed(username);
             int online = sessionManager.getOnlineCount();
 
-            String stats = "211 M:" + unread + " S:" + storage + " U:" + online;
+            String stats = "211 M:" + unread + " S:" + storage + " U:" + online + " P:" + physical;
             out.println(stats);
 
             logger.log("📊 STAT for " + username + " - Unread: " + unread +
-                    ", Storage: " + storage + " bytes, Online: " + online);
+                    ", Storage: " + storage + " bytes (" + physical + " on disk), Online: " + online);
 
         } catch (Exception e) {
-            out.println("211 M:0 S:0 U:0");
+            out.println("211 M:0 S:0 U:0 P:0");
             logger.logError("STAT", e.getMessage());
         }
     }
 
-    private void handleExport(String params) {
-        out.println("250 EXPORT READY");
-        logger.log("💾 EXPORT requested by " + currentSession.getUsername());
+    // EXPORT [MBOX|ZIP] [MAILBOX|INBOX|ALL|UNREAD|SENT|ARCHIVE] [SINCE <yyyy-mm-dd>]
+    // [BEFORE <yyyy-mm-dd>] [FILE]. Without FILE the export is streamed back as
+    // "217 EXPORT <format>", "217 DATA <n>" lines each followed by n raw bytes,
+    // and "217 END <count>"; with FILE it is written on the server and the reply
+    // is "250 EXPORT QUEUED <path>". "452 EXPORT BUSY" when too many are running.
+    // Interrupted while waiting, the export is cancelled and the connection
+    // dropped, since the client is left mid-stream.
+    private void handleExport(String params) throws IOException {
+        String username = currentSession.getUsername();
+        MailboxExporter.Format format = MailboxExporter.Format.MBOX;
+        String folder = "MAILBOX";
+        long since = 0;
+        long before = Long.MAX_VALUE;
+        boolean toFile = false;
+
+        String[] tokens = params.trim().isEmpty() ? new String[0] : params.trim().split("\\s+");
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                String token = tokens[i].toUpperCase();
+                switch (token) {
+                    case "MBOX", "ZIP" -> format = MailboxExporter.Format.valueOf(token);
+                    case "MAILBOX", "INBOX", "ALL", "UNREAD", "SENT", "ARCHIVE" -> folder = token;
+                    case "SINCE" -> since = startOfDay(tokens[++i]);
+                    case "BEFORE" -> before = startOfDay(tokens[++i]);
+                    case "FILE" -> toFile = true;
+                    default -> throw new IllegalArgumentException(token);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | DateTimeParseException e) {
+            out.println("501 SYNTAX ERROR");
+            return;
+        }
+
+        MessageManager.ExportRequest request = new MessageManager.ExportRequest(username, folder, format, since, before);
+        if (toFile) {
+            File file = messageManager.exportToFile(request);
+            if (file == null) {
+                out.println("452 EXPORT BUSY");
+                return;
+            }
+            out.println("250 EXPORT QUEUED " + file.getPath());
+            logger.log("💾 EXPORT " + folder + " as " + format + " for " + username + " queued to " + file);
+            return;
+        }
+
+        ChunkedOutput chunks = new ChunkedOutput(rawOut, "217 EXPORT " + format);
+        Future<Integer> export = messageManager.exportMessages(request, chunks);
+        if (export == null) {
+            out.println("452 EXPORT BUSY");
+            return;
+        }
+
+        int count;
+        try {
+            count = export.get();
+        } catch (ExecutionException e) {
+            chunks.flush();
+            out.println("550 EXPORT FAILED");
+            logger.logError("EXPORT", String.valueOf(e.getCause().getMessage()));
+            return;
+        } catch (InterruptedException e) {
+            export.cancel(true);
+            Thread.currentThread().interrupt();
+            logger.logError("EXPORT", "Interrupted exporting for " + username + " - closing connection");
+            clientSocket.close();
+            return;
+        }
+        chunks.flush();
+        out.println("217 END " + count);
+
+        logger.log("💾 EXPORT " + folder + " as " + format + " for " + username + ": " + count + " messages");
+        logToGUI("💾 EXPORT for " + username + ": " + count + " messages");
+    }
+
+    private static long startOfDay(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    // Frames everything written to it as "217 DATA <n>" plus n raw bytes, at most
+    // Config.EXPORT_CHUNK_BYTES at a time; the header line goes out with the first.
+    private static final class ChunkedOutput extends OutputStream {
+        private final OutputStream target;
+        private final byte[] buffer = new byte[Config.EXPORT_CHUNK_BYTES];
+        private byte[] header;
+        private int count;
+
+        ChunkedOutput(OutputStream target, String header) {
+            this.target = target;
+            this.header = (header + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) emit();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) emit();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            emit();
+            target.flush();
+        }
+
+        private void emit() throws IOException {
+            if (header != null) {
+                target.write(header);
+                header = null;
+            }
+            if (count == 0) return;
+            target.write(("217 DATA " + count + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            target.write(buffer, 0, count);
+            count = 0;
+        }
     }
 
     private void handleQuit() {
@@ -0,0 +1,11 @@
+// server/models/BodyRef.java
+package server.models;
+
+// Location of a message body inside a body segment file. length is the stored
+// (possibly compressed) size; codec says how to turn those bytes back into text.
+// digest is the hex SHA-256 of the body text, or null for bodies stored before
+// deduplication; identical bodies share one BodyRef.
+public record BodyRef(int segment, int offset, int length, byte codec, String digest) {
+    public static final byte CODEC_RAW = 0;
+    public static final byte CODEC_DEFLATE = 1;
+}
@@ -0,0 +1,49 @@
+// server/models/MailboxEntry.java
+package server.models;
+
+import java.util.List;
+
+// Per-mailbox state for a message; the payload itself is shared.
+public class MailboxEntry {
+    private final MessageContent content;
+    private volatile boolean isRead;
+    private volatile boolean isArchived;
+    // mailbox modseq of the last change to this entry
+    private volatile long modSeq;
+
+    public MailboxEntry(MessageContent content) {
+        this(content, false, false);
+    }
+
+    public MailboxEntry(MessageContent content, boolean isRead, boolean isArchived) {
+        this.content = content;
+        this.isRead = isRead;
+        this.isArchived = isArchived;
+    }
+
+    public MessageContent getContent() { return content; }
+    public long getId() { return content.getId(); }
+    public String getMessageId() { return content.getMessageId(); }
+    public String getFrom() { return content.getFrom(); }
+    public List<String> getToList() { return content.getToList(); }
+    public String getToAsString() { return content.getToAsString(); }
+    public String getSubject() { return content.getSubject(); }
+    public int getBodyLength() { return content.getBodyLength(); }
+    public long getTimestamp() { return content.getTimestamp(); }
+    public boolean isRead() { return isRead; }
+    public boolean isArchived() { return isArchived; }
+
+    public void setRead(boolean read) { isRead = read; }
+    public void setArchived(boolean archived) { isArchived = archived; }
+    public long getModSeq() { return modSeq; }
+    public void setModSeq(long modSeq) { this.modSeq = modSeq; }
+
+    @Override
+    public String toString() {
+        return "MailboxEntry{" +
+                "id='" + getMessageId() + '\'' +
+                ", read=" + isRead +
+                ", archived=" + isArchived +
+                '}';
+    }
+}
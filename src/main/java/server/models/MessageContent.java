@@ -0,0 +1,122 @@
+// server/models/MessageContent.java
+package server.models;
+
+import server.utils.MessageIds;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Immutable message payload shared by every mailbox that holds the message.
+// Only the headers live here; the body sits in a BodyStore segment. Once every
+// copy is archived the headers can be moved to a cold store: the getters then
+// read them back from there on each call instead of keeping them on heap. A
+// copy still being listed keeps just the encoded LIST line.
+public final class MessageContent {
+    public record Headers(String from, List<String> to, String subject) {
+        public Headers {
+            to = List.copyOf(to);
+        }
+    }
+
+    // Where the headers of a cold message can be read back from.
+    public interface ColdHeaders {
+        Headers load() throws IOException;
+    }
+
+    private final long id;
+    private final BodyRef bodyRef;
+    private final int bodyLength;
+    private final long timestamp;
+    private final AtomicInteger references = new AtomicInteger();
+    // null while cold; cold is set before headers are dropped and cleared only
+    // after they are back, so a reader always finds one of the two
+    private volatile Headers headers;
+    private volatile ColdHeaders cold;
+    // LIST line, encoded on first use while hot; the headers in it never change
+    private volatile byte[] listLine;
+
+    public MessageContent(long id, String from, List<String> to, String subject,
+                          BodyRef bodyRef, int bodyLength, long timestamp) {
+        this.id = id;
+        this.headers = new Headers(from, to, subject);
+        this.bodyRef = bodyRef;
+        this.bodyLength = bodyLength;
+        this.timestamp = timestamp;
+    }
+
+    public long getId() { return id; }
+    public String getMessageId() { return MessageIds.format(id); }
+    public String getFrom() { return getHeaders().from(); }
+    public List<String> getToList() { return getHeaders().to(); }
+    public String getToAsString() {
+        List<String> to = getToList();
+        if (to.isEmpty()) return "Unknown";
+        return String.join(", ", to);
+    }
+    public String getSubject() { return getHeaders().subject(); }
+    public BodyRef getBodyRef() { return bodyRef; }
+    public int getBodyLength() { return bodyLength; }
+    public long getTimestamp() { return timestamp; }
+
+    public Headers getHeaders() {
+        Headers h = headers;
+        if (h != null) return h;
+        ColdHeaders c = cold;
+        if (c == null) return headers;
+        try {
+            return c.load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read cold headers of " + getMessageId(), e);
+        }
+    }
+
+    // "<id> <from> <bodyLength> <timestamp> <subject>" as UTF-8, shared by every LIST
+    public byte[] getListLine() {
+        byte[] line = listLine;
+        if (line != null) return line;
+
+        Headers h = getHeaders();
+        line = String.format("%s %s %d %d %s", getMessageId(), h.from(), bodyLength, timestamp, h.subject())
+                .getBytes(StandardCharsets.UTF_8);
+        if (cold == null) listLine = line;
+        return line;
+    }
+
+    public boolean isCold() { return cold != null; }
+    public ColdHeaders getColdHeaders() { return cold; }
+
+    // keepListLine leaves the LIST line on heap for a copy that is still listed
+    public synchronized void moveToCold(ColdHeaders coldHeaders, boolean keepListLine) {
+        if (keepListLine) getListLine();
+        cold = coldHeaders;
+        headers = null;
+        if (!keepListLine) listLine = null;
+    }
+
+    // Brings the headers back on heap; returns the cold copy they came from, or
+    // null if the content was not cold.
+    public synchronized ColdHeaders warm() throws IOException {
+        ColdHeaders c = cold;
+        if (c == null) return null;
+        headers = c.load();
+        cold = null;
+        return c;
+    }
+
+    public int retain() { return references.incrementAndGet(); }
+    public int release() { return references.decrementAndGet(); }
+    public int getReferenceCount() { return references.get(); }
+
+    @Override
+    public String toString() {
+        return "MessageContent{" +
+                "id='" + getMessageId() + '\'' +
+                ", cold=" + isCold() +
+                ", timestamp=" + timestamp +
+                ", refs=" + references.get() +
+                '}';
+    }
+}
@@ -0,0 +1,348 @@
+package server.storage;
+
+import server.models.BodyRef;
+import server.utils.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Append-only segment files holding message bodies. Bodies in sealed segments
+// are read back through a read-only memory map, so only headers have to stay on
+// heap; the segment still being appended to is read with plain positional reads.
+// Large bodies are deflated on the way in; the codec is kept in the BodyRef.
+// Bodies are also addressed by SHA-256, so sending the same text again reuses
+// the stored copy; each distinct body is reference counted.
+public class BodyStore implements Flushable, Closeable {
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final File dir;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final MessageDigest sha256;
+    private Segment active;
+
+    // live bodies only; guarded by this
+    private final Map<BodyRef, Integer> references = new HashMap<>();
+    private final Map<String, BodyRef> byDigest = new HashMap<>();
+
+    // bodies appended since startup
+    private final AtomicLong bodiesStored = new AtomicLong();
+    private final AtomicLong bodiesCompressed = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong bodiesDeduplicated = new AtomicLong();
+    private final AtomicLong bytesDeduplicated = new AtomicLong();
+
+    public BodyStore(String path) throws IOException {
+        this.dir = new File(path);
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".dat"));
+        if (files != null) {
+            for (File file : files) {
+                int id = Integer.parseInt(file.getName().substring(8, file.getName().length() - 4));
+                Segment segment = new Segment(id, file);
+                segments.put(id, segment);
+                if (active == null || id > active.id) active = segment;
+            }
+        }
+
+        if (active == null) {
+            active = openSegment(1);
+        }
+        for (Segment segment : segments.values()) {
+            segment.sealed = segment != active;
+        }
+    }
+
+    // The returned ref carries one reference for the caller, so it cannot be
+    // dropped before the caller's own entries retain it; release() it afterwards.
+    public synchronized BodyRef append(String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String digest = HexFormat.of().formatHex(sha256.digest(bytes));
+        rawBytes.addAndGet(bytes.length);
+
+        BodyRef existing = byDigest.get(digest);
+        if (existing != null) {
+            retain(existing);
+            bodiesDeduplicated.incrementAndGet();
+            bytesDeduplicated.addAndGet(existing.length());
+            return existing;
+        }
+
+        byte codec = BodyRef.CODEC_RAW;
+        if (bytes.length >= Config.BODY_COMPRESSION_THRESHOLD) {
+            byte[] packed = deflate(bytes);
+            if (packed != null) {
+                bytes = packed;
+                codec = BodyRef.CODEC_DEFLATE;
+                bodiesCompressed.incrementAndGet();
+            }
+        }
+        bodiesStored.incrementAndGet();
+        storedBytes.addAndGet(bytes.length);
+
+        if (active.size + bytes.length > SEGMENT_SIZE && active.size > 0) {
+            active.dirty = true;
+            active.sealed = true;
+            active = openSegment(active.id + 1);
+        }
+
+        int offset = (int) active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, active.size + buffer.position());
+        }
+        active.size += bytes.length;
+        active.dirty = true;
+
+        BodyRef ref = new BodyRef(active.id, offset, bytes.length, codec, digest);
+        retain(ref);
+        return ref;
+    }
+
+    // Returns null when deflating would not save at least an eighth of the size.
+    private byte[] deflate(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+
+        byte[] packed = new byte[raw.length - raw.length / 8];
+        int size = 0;
+        while (!deflater.finished() && size < packed.length) {
+            size += deflater.deflate(packed, size, packed.length - size);
+        }
+        return deflater.finished() ? Arrays.copyOf(packed, size) : null;
+    }
+
+    // Returns the last byte written, or -1 if the body was empty.
+    private static int inflate(ByteBuffer packed, OutputStream out) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            byte[] chunk = new byte[8192];
+            int last = -1;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed body");
+                }
+                if (n == 0) continue;
+                out.write(chunk, 0, n);
+                last = chunk[n - 1];
+            }
+            return last;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed body: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public String read(BodyRef ref) throws IOException {
+        ByteBuffer slice = slice(ref);
+        return switch (ref.codec()) {
+            case BodyRef.CODEC_RAW -> StandardCharsets.UTF_8.decode(slice).toString();
+            case BodyRef.CODEC_DEFLATE -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(slice.remaining() * 3);
+                inflate(slice, out);
+                yield out.toString(StandardCharsets.UTF_8);
+            }
+            default -> throw new IOException("Unknown body codec " + ref.codec());
+        };
+    }
+
+    // Copies the body's UTF-8 bytes to out without ever building a String:
+    // stored bytes straight from the mapped segment, deflated ones a chunk at a
+    // time. Returns the last byte written, or -1 if the body is empty.
+    public int writeTo(BodyRef ref, OutputStream out) throws IOException {
+        ByteBuffer slice = slice(ref);
+        return switch (ref.codec()) {
+            case BodyRef.CODEC_RAW -> copy(slice, out);
+            case BodyRef.CODEC_DEFLATE -> inflate(slice, out);
+            default -> throw new IOException("Unknown body codec " + ref.codec());
+        };
+    }
+
+    private static int copy(ByteBuffer slice, OutputStream out) throws IOException {
+        byte[] chunk = new byte[Math.min(slice.remaining(), 8192)];
+        int last = -1;
+        while (slice.hasRemaining()) {
+            int n = Math.min(chunk.length, slice.remaining());
+            slice.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+            last = chunk[n - 1];
+        }
+        return last;
+    }
+
+    private ByteBuffer slice(BodyRef ref) throws IOException {
+        Segment segment = segments.get(ref.segment());
+        if (segment == null) {
+            throw new IOException("Missing body segment " + ref.segment());
+        }
+        if (segment.sealed) {
+            return segment.mapped().slice(ref.offset(), ref.length());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ref.length());
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, ref.offset() + buffer.position()) < 0) {
+                throw new IOException("Body past the end of segment " + ref.segment());
+            }
+        }
+        return buffer.flip();
+    }
+
+    // Whether ref lies inside a segment this store holds: a cheap check before
+    // a reply commits to streaming the body.
+    public boolean contains(BodyRef ref) {
+        Segment segment = segments.get(ref.segment());
+        return segment != null && ref.offset() >= 0 && (long) ref.offset() + ref.length() <= segment.size;
+    }
+
+    // Segment live bytes count each distinct body once, however many messages share it.
+    public synchronized void retain(BodyRef ref) {
+        if (references.merge(ref, 1, Integer::sum) > 1) return;
+
+        if (ref.digest() != null) byDigest.putIfAbsent(ref.digest(), ref);
+        Segment segment = segments.get(ref.segment());
+        if (segment != null) segment.liveBytes.addAndGet(ref.length());
+    }
+
+    public synchronized void release(BodyRef ref) {
+        Integer count = references.get(ref);
+        if (count == null) return;
+        if (count > 1) {
+            references.put(ref, count - 1);
+            return;
+        }
+
+        references.remove(ref);
+        if (ref.digest() != null) byDigest.remove(ref.digest(), ref);
+        Segment segment = segments.get(ref.segment());
+        if (segment != null) segment.liveBytes.addAndGet(-ref.length());
+    }
+
+    // Sealed segments whose bodies have all been released are deleted outright.
+    public synchronized int dropEmptySegments() {
+        int dropped = 0;
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.liveBytes.get() > 0) continue;
+
+            segments.remove(segment.id);
+            segment.close();
+            if (segment.file.delete()) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Segment segment : segments.values()) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public String getCompressionSummary() {
+        long raw = rawBytes.get();
+        long stored = storedBytes.get();
+        return String.format("%d bodies written (%d compressed), %d deduplicated (%d bytes saved), " +
+                        "%d bytes in -> %d bytes written (%.1f%%)",
+                bodiesStored.get(), bodiesCompressed.get(), bodiesDeduplicated.get(), bytesDeduplicated.get(),
+                raw, stored, raw == 0 ? 100.0 : stored * 100.0 / raw);
+    }
+
+    public long getDiskBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, String.format("segment-%06d.dat", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        volatile long size;
+        volatile boolean dirty = false;
+        // no longer appended to, so it can be mapped once at its final size
+        volatile boolean sealed = false;
+        private MappedByteBuffer map;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        synchronized MappedByteBuffer mapped() throws IOException {
+            if (map == null) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return map;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to close body segment " + id + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package server.storage;
+
+import server.models.MessageContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Headers of archived messages, deflated in blocks of many messages each so
+// they compress well, in append-only segment files. The mailbox logs still hold
+// every header, so this is only a place to park them off heap: the directory
+// is emptied on startup and a segment is deleted once none of its slots is live.
+public class ColdStore implements Closeable {
+    private static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int CACHED_BLOCKS = 8;
+
+    private final File dir;
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private Segment active;
+
+    // recently inflated blocks, so walking an archive folder inflates each block once
+    private final Map<Long, MessageContent.Headers[]> blockCache =
+            new LinkedHashMap<>(CACHED_BLOCKS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, MessageContent.Headers[]> eldest) {
+                    return size() > CACHED_BLOCKS;
+                }
+            };
+
+    // One message's headers: entry index within the block at offset.
+    public static final class Slot implements MessageContent.ColdHeaders {
+        private final ColdStore store;
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final int index;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Slot(ColdStore store, Segment segment, long offset, int length, int index) {
+            this.store = store;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.index = index;
+        }
+
+        @Override
+        public MessageContent.Headers load() throws IOException {
+            return store.read(this);
+        }
+    }
+
+    public ColdStore(String path) throws IOException {
+        this.dir = new File(path);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        File[] stale = dir.listFiles((d, name) -> name.startsWith("cold-") && name.endsWith(".dat"));
+        if (stale != null) {
+            for (File file : stale) {
+                if (!file.delete()) {
+                    System.err.println("❌ Could not delete stale cold segment " + file);
+                }
+            }
+        }
+        active = openSegment(1);
+    }
+
+    // Writes the headers as one block and returns a slot for each, in order.
+    public synchronized List<Slot> write(List<MessageContent.Headers> batch) throws IOException {
+        RecordEncoder block = new RecordEncoder(batch.size() * 96);
+        block.writeVarInt(batch.size());
+        for (MessageContent.Headers headers : batch) {
+            block.writeString(headers.from()).writeStrings(headers.to()).writeString(headers.subject());
+        }
+        byte[] packed = deflate(block.toByteArray());
+
+        if (active.size + packed.length > SEGMENT_SIZE && active.size > 0) {
+            Segment full = active;
+            active = openSegment(full.id + 1);
+            dropIfEmpty(full);
+        }
+
+        long offset = active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, offset + buffer.position());
+        }
+        active.size += packed.length;
+        active.live.addAndGet(batch.size());
+
+        List<Slot> slots = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            slots.add(new Slot(this, active, offset, packed.length, i));
+        }
+        return slots;
+    }
+
+    private MessageContent.Headers read(Slot slot) throws IOException {
+        long key = ((long) slot.segment.id << 40) | slot.offset;
+        MessageContent.Headers[] block;
+        synchronized (blockCache) {
+            block = blockCache.get(key);
+        }
+
+        if (block == null) {
+            ByteBuffer packed = ByteBuffer.allocate(slot.length);
+            while (packed.hasRemaining()) {
+                if (slot.segment.channel.read(packed, slot.offset + packed.position()) < 0) {
+                    throw new IOException("Truncated cold block in segment " + slot.segment.id);
+                }
+            }
+            RecordDecoder record = new RecordDecoder(inflate(packed.array()));
+            block = new MessageContent.Headers[record.readVarInt()];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = new MessageContent.Headers(record.readString(), record.readStrings(), record.readString());
+            }
+            synchronized (blockCache) {
+                blockCache.put(key, block);
+            }
+        }
+        return block[slot.index];
+    }
+
+    // The slot's headers are no longer needed; safe to call more than once.
+    public synchronized void release(Slot slot) {
+        if (!slot.released.compareAndSet(false, true)) return;
+        slot.segment.live.decrementAndGet();
+        dropIfEmpty(slot.segment);
+    }
+
+    private void dropIfEmpty(Segment segment) {
+        if (segment == active || segment.live.get() > 0) return;
+        segments.remove(segment.id);
+        segment.close();
+        if (!segment.file.delete()) {
+            System.err.println("❌ Could not delete cold segment " + segment.file);
+        }
+        synchronized (blockCache) {
+            blockCache.keySet().removeIf(key -> (int) (key >>> 40) == segment.id);
+        }
+    }
+
+    public synchronized int getLiveCount() {
+        int live = 0;
+        for (Segment segment : segments.values()) {
+            live += segment.live.get();
+        }
+        return live;
+    }
+
+    public synchronized long getDiskBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+        deflater.end();
+    }
+
+    private byte[] deflate(byte[] raw) {
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 3 + 64);
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] packed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length * 4);
+            byte[] chunk = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated cold block");
+                }
+                out.write(chunk, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt cold block: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, String.format("cold-%06d.dat", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final AtomicInteger live = new AtomicInteger();
+        volatile long size = 0;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to close cold segment " + id + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package server.storage;
+
+import server.models.BodyRef;
+import server.models.MailboxEntry;
+import server.utils.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+// One folder (e.g. "user1" or "user1_sent"), kept newest-first so LIST is a
+// plain walk over the skip list instead of a copy and sort. Counters are kept
+// in step with every add/remove/flag change so STAT never scans the folder.
+public class Mailbox implements Iterable<MailboxEntry> {
+    // Position of an entry in the folder; also what a LIST cursor points at.
+    public record Position(long timestamp, long messageId) {
+        static Position of(MailboxEntry entry) {
+            return new Position(entry.getTimestamp(), entry.getId());
+        }
+    }
+
+    static final Comparator<Position> NEWEST_FIRST = (a, b) -> a.timestamp() != b.timestamp()
+            ? Long.compare(b.timestamp(), a.timestamp())
+            : Long.compare(b.messageId(), a.messageId());
+
+    private final String key;
+    private final ConcurrentNavigableMap<Position, MailboxEntry> entries = new ConcurrentSkipListMap<>(NEWEST_FIRST);
+
+    public static final long UNCHANGED = -1;
+
+    public record Counts(int unread, int active, int archived, long bytes, long physicalBytes) {
+        public int size() {
+            return active + archived;
+        }
+    }
+
+    // Writers (adds, removes, flag changes) take the write lock; the skip list
+    // itself is safe to walk without it, so LIST never blocks. Lock order is this
+    // lock, then the monitor of the mailbox's MailboxLog: persist runs under the
+    // write lock, and a rewrite starts under the read lock (see snapshot), so
+    // MailboxLog must never call back into a Mailbox.
+    private final StampedLock lock = new StampedLock();
+    private int unreadCount = 0;
+    private int activeCount = 0;
+    private int archivedCount = 0;
+    private long bytesUsed = 0;
+
+    // Stored size of each distinct body in the folder, counted once however many
+    // entries share it; bodies maps each one to the number of entries holding it.
+    private final Map<BodyRef, Integer> bodies = new HashMap<>();
+    private long physicalBytes = 0;
+
+    // Modification sequence: bumped by every change, stored on the changed entry.
+    // Removed entries leave a tombstone so CHANGEDSINCE can report them; only the
+    // last Config.EXPUNGE_HISTORY are kept, and expungedFloor marks the oldest gap.
+    private long modSeq = 0;
+    private long expungedFloor = 0;
+    private final ConcurrentNavigableMap<Long, MailboxEntry> byModSeq = new ConcurrentSkipListMap<>();
+    private final ConcurrentNavigableMap<Long, Long> tombstones = new ConcurrentSkipListMap<>();
+
+    // when the mailbox was last asked for, to pick which idle ones to evict
+    private volatile long lastAccess = System.nanoTime();
+
+    public Mailbox(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void touch() {
+        lastAccess = System.nanoTime();
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    // Replay variants: apply a change read back from the mailbox log, keeping the
+    // modseq it was logged with.
+    public boolean add(MailboxEntry entry, long modSeq) {
+        return update(entry, false, modSeq, null, () -> insert(entry)) != UNCHANGED;
+    }
+
+    public boolean remove(MailboxEntry entry, long modSeq) {
+        return update(entry, true, modSeq, null, () -> delete(entry, e -> true)) != UNCHANGED;
+    }
+
+    public boolean markRead(MailboxEntry entry, long modSeq) {
+        return update(entry, false, modSeq, null, () -> flagRead(entry)) != UNCHANGED;
+    }
+
+    public boolean setArchived(MailboxEntry entry, boolean archived, long modSeq) {
+        return update(entry, false, modSeq, null, () -> flagArchived(entry, archived)) != UNCHANGED;
+    }
+
+    // The logged variants give the change the next modseq, then run persist with
+    // it under the write lock and return its result (a journal sequence), or
+    // UNCHANGED. That keeps one mailbox's log records in the order of its changes.
+    // If persist throws, the change is rolled back before the exception leaves
+    // the lock, so a change that is not in the log is never seen in the mailbox.
+    public long add(MailboxEntry entry, LongUnaryOperator persist) {
+        long stamp = lock.writeLock();
+        try {
+            if (!insert(entry)) return UNCHANGED;
+
+            long previousModSeq = modSeq;
+            long seq = assignModSeq(entry, false, 0);
+            try {
+                return persist.applyAsLong(seq);
+            } catch (RuntimeException e) {
+                byModSeq.remove(seq, entry);
+                entry.setModSeq(0);
+                modSeq = previousModSeq;
+                delete(entry, x -> true);
+                throw e;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long remove(MailboxEntry entry, LongUnaryOperator persist) {
+        return removeIf(entry, e -> true, persist);
+    }
+
+    // condition is checked under the lock, so a concurrent flag change cannot slip in between.
+    public long removeIf(MailboxEntry entry, Predicate<MailboxEntry> condition, LongUnaryOperator persist) {
+        return update(entry, true, 0, persist, () -> delete(entry, condition));
+    }
+
+    public long markRead(MailboxEntry entry, LongUnaryOperator persist) {
+        return update(entry, false, 0, persist, () -> flagRead(entry));
+    }
+
+    public long setArchived(MailboxEntry entry, boolean archived, LongUnaryOperator persist) {
+        return update(entry, false, 0, persist, () -> flagArchived(entry, archived));
+    }
+
+    // An entry changed by a batch and the modseq it was given.
+    public record Change(MailboxEntry entry, long modSeq) { }
+
+    // Batch variants: one write lock and one persist call for every entry that
+    // actually changes; entries already in the requested state are skipped. If
+    // persist throws, every change of the batch is rolled back.
+    public long markRead(List<MailboxEntry> batch, ToLongFunction<List<Change>> persist) {
+        return updateAll(batch, this::flagRead, persist);
+    }
+
+    public long setArchived(List<MailboxEntry> batch, boolean archived, ToLongFunction<List<Change>> persist) {
+        return updateAll(batch, entry -> flagArchived(entry, archived), persist);
+    }
+
+    // Entries already in the mailbox are skipped. If persist throws, every insert
+    // of the batch is rolled back, as for a single add.
+    public long add(List<MailboxEntry> batch, ToLongFunction<List<Change>> persist) {
+        long stamp = lock.writeLock();
+        try {
+            long previousModSeq = modSeq;
+            List<Change> changes = new ArrayList<>();
+            for (MailboxEntry entry : batch) {
+                if (insert(entry)) {
+                    changes.add(new Change(entry, assignModSeq(entry, false, 0)));
+                }
+            }
+            if (changes.isEmpty()) return UNCHANGED;
+
+            try {
+                return persist.applyAsLong(changes);
+            } catch (RuntimeException e) {
+                for (Change change : changes) {
+                    byModSeq.remove(change.modSeq(), change.entry());
+                    change.entry().setModSeq(0);
+                    delete(change.entry(), x -> true);
+                }
+                modSeq = previousModSeq;
+                throw e;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean insert(MailboxEntry entry) {
+        if (entries.putIfAbsent(Position.of(entry), entry) != null) return false;
+        count(entry, 1);
+        hold(entry.getContent().getBodyRef(), 1);
+        return true;
+    }
+
+    private boolean delete(MailboxEntry entry, Predicate<MailboxEntry> condition) {
+        if (!condition.test(entry) || !entries.remove(Position.of(entry), entry)) return false;
+        count(entry, -1);
+        hold(entry.getContent().getBodyRef(), -1);
+        return true;
+    }
+
+    // Caller holds the write lock.
+    private void hold(BodyRef body, int delta) {
+        if (body == null) return;
+        Integer held = bodies.merge(body, delta, (a, b) -> a + b == 0 ? null : a + b);
+        if (held == null) {
+            physicalBytes -= body.length();
+        } else if (delta > 0 && held == delta) {
+            physicalBytes += body.length();
+        }
+    }
+
+    private boolean flagRead(MailboxEntry entry) {
+        if (entry.isRead()) return false;
+        count(entry, -1);
+        entry.setRead(true);
+        count(entry, 1);
+        return true;
+    }
+
+    private boolean flagArchived(MailboxEntry entry, boolean archived) {
+        if (entry.isArchived() == archived) return false;
+        count(entry, -1);
+        entry.setArchived(archived);
+        count(entry, 1);
+        return true;
+    }
+
+    private long update(MailboxEntry entry, boolean removal, long givenModSeq,
+                        LongUnaryOperator persist, BooleanSupplier change) {
+        long stamp = lock.writeLock();
+        try {
+            long previousModSeq = modSeq;
+            Prior prior = Prior.of(entry);
+            if (!change.getAsBoolean()) return UNCHANGED;
+
+            long seq = assignModSeq(entry, removal, givenModSeq);
+            if (persist == null) return 0;
+            try {
+                return persist.applyAsLong(seq);
+            } catch (RuntimeException e) {
+                undo(entry, removal, seq, prior);
+                modSeq = previousModSeq;
+                throw e;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private long updateAll(List<MailboxEntry> batch, Predicate<MailboxEntry> change,
+                           ToLongFunction<List<Change>> persist) {
+        long stamp = lock.writeLock();
+        try {
+            long previousModSeq = modSeq;
+            List<Change> changes = new ArrayList<>();
+            List<Prior> priors = new ArrayList<>();
+            for (MailboxEntry entry : batch) {
+                Prior prior = Prior.of(entry);
+                if (change.test(entry)) {
+                    changes.add(new Change(entry, assignModSeq(entry, false, 0)));
+                    priors.add(prior);
+                }
+            }
+            if (changes.isEmpty()) return UNCHANGED;
+
+            try {
+                return persist.applyAsLong(changes);
+            } catch (RuntimeException e) {
+                for (int i = changes.size() - 1; i >= 0; i--) {
+                    undo(changes.get(i).entry(), false, changes.get(i).modSeq(), priors.get(i));
+                }
+                modSeq = previousModSeq;
+                throw e;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Flags and modseq of an entry before a logged change, to undo it with.
+    private record Prior(long modSeq, boolean read, boolean archived) {
+        static Prior of(MailboxEntry entry) {
+            return new Prior(entry.getModSeq(), entry.isRead(), entry.isArchived());
+        }
+    }
+
+    // Caller holds the write lock. A removal's tombstone is dropped again and the
+    // entry put back; a flag change is reverted with its counters.
+    private void undo(MailboxEntry entry, boolean removal, long seq, Prior prior) {
+        if (removal) {
+            tombstones.remove(seq, entry.getId());
+            insert(entry);
+        } else {
+            byModSeq.remove(seq, entry);
+            count(entry, -1);
+            entry.setRead(prior.read());
+            entry.setArchived(prior.archived());
+            count(entry, 1);
+        }
+        entry.setModSeq(prior.modSeq());
+        if (prior.modSeq() > 0) byModSeq.put(prior.modSeq(), entry);
+    }
+
+    // Caller holds the write lock.
+    private long assignModSeq(MailboxEntry entry, boolean removal, long givenModSeq) {
+        long seq = givenModSeq > 0 ? givenModSeq : modSeq + 1;
+        modSeq = Math.max(modSeq, seq);
+        byModSeq.remove(entry.getModSeq(), entry);
+        entry.setModSeq(seq);
+        if (removal) {
+            addTombstone(seq, entry.getId());
+        } else {
+            byModSeq.put(seq, entry);
+        }
+        return seq;
+    }
+
+    // Replay of a removal whose entry is already gone, or of a tombstone kept by a rewrite.
+    public void noteExpunged(long messageId, long seq) {
+        long stamp = lock.writeLock();
+        try {
+            modSeq = Math.max(modSeq, seq);
+            if (seq > expungedFloor) addTombstone(seq, messageId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Keeps modseqs monotonic across replays of records that changed nothing.
+    public void restoreModSeq(long seq, long floor) {
+        long stamp = lock.writeLock();
+        try {
+            modSeq = Math.max(modSeq, seq);
+            expungedFloor = Math.max(expungedFloor, floor);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void addTombstone(long seq, long messageId) {
+        tombstones.put(seq, messageId);
+        while (tombstones.size() > Config.EXPUNGE_HISTORY) {
+            expungedFloor = Math.max(expungedFloor, tombstones.pollFirstEntry().getKey());
+        }
+    }
+
+    public record Changes(List<MailboxEntry> changed, List<Long> expunged, long modSeq) { }
+
+    // Everything added, flagged or expunged after since, or null when tombstones
+    // that far back have been discarded and the caller has to LIST in full.
+    public Changes changesSince(long since) {
+        long stamp = lock.readLock();
+        try {
+            if (since > 0 && since < expungedFloor) return null;
+            return new Changes(new ArrayList<>(byModSeq.tailMap(since, false).values()),
+                    new ArrayList<>(tombstones.tailMap(since, false).values()), modSeq);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getModSeq() {
+        long stamp = lock.readLock();
+        try {
+            return modSeq;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getExpungedFloor() {
+        long stamp = lock.readLock();
+        try {
+            return expungedFloor;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // modseq -> messageId of recent removals, oldest first
+    public Map<Long, Long> tombstones() {
+        return Collections.unmodifiableMap(tombstones);
+    }
+
+    // Everything a rewrite of the mailbox file needs, as of one moment.
+    public record Snapshot(long modSeq, long expungedFloor, Map<Long, Long> tombstones,
+                           Collection<MailboxEntry> entries, boolean empty) { }
+
+    public interface SnapshotHook {
+        void taken() throws IOException;
+    }
+
+    // Copies the mailbox under the read lock, entries included, so the copy can
+    // be written out after the lock is released. atSnapshot runs under the same
+    // lock: no change can land between the copy and the log position it marks.
+    public Snapshot snapshot(SnapshotHook atSnapshot) throws IOException {
+        long stamp = lock.readLock();
+        try {
+            List<MailboxEntry> copies = new ArrayList<>(activeCount + archivedCount);
+            for (MailboxEntry entry : entries.values()) {
+                MailboxEntry copy = new MailboxEntry(entry.getContent(), entry.isRead(), entry.isArchived());
+                copy.setModSeq(entry.getModSeq());
+                copies.add(copy);
+            }
+            Snapshot snapshot = new Snapshot(modSeq, expungedFloor, new TreeMap<>(tombstones), copies,
+                    activeCount + archivedCount == 0);
+            atSnapshot.taken();
+            return snapshot;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void count(MailboxEntry entry, int delta) {
+        if (entry.isArchived()) {
+            archivedCount += delta;
+        } else {
+            activeCount += delta;
+            if (!entry.isRead()) unreadCount += delta;
+        }
+        bytesUsed += (long) delta * entry.getBodyLength();
+    }
+
+    // All the counters from the same moment; readers never wait on writers
+    // unless one slipped in while the counters were being copied.
+    public Counts counts() {
+        long stamp = lock.tryOptimisticRead();
+        Counts counts = new Counts(unreadCount, activeCount, archivedCount, bytesUsed, physicalBytes);
+        if (lock.validate(stamp)) return counts;
+
+        stamp = lock.readLock();
+        try {
+            return new Counts(unreadCount, activeCount, archivedCount, bytesUsed, physicalBytes);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        return counts().size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getUnreadCount() {
+        return counts().unread();
+    }
+
+    public int getActiveCount() {
+        return counts().active();
+    }
+
+    public int getArchivedCount() {
+        return counts().archived();
+    }
+
+    public long getBytesUsed() {
+        return counts().bytes();
+    }
+
+    public long getPhysicalBytes() {
+        return counts().physicalBytes();
+    }
+
+    public Collection<MailboxEntry> entries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    // Entries strictly older than position, newest first; a LIST page starts here.
+    public Collection<MailboxEntry> entriesAfter(Position position) {
+        return Collections.unmodifiableCollection(entries.tailMap(position, false).values());
+    }
+
+    @Override
+    public Iterator<MailboxEntry> iterator() {
+        return entries().iterator();
+    }
+}
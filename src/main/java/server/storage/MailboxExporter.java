@@ -0,0 +1,138 @@
+package server.storage;
+
+import server.models.MailboxEntry;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Writes messages one at a time, so an export never holds more than one body:
+// either an mboxrd file (body lines starting with ">*From " get one more '>')
+// or a zip with one RFC 822 .eml file per message under its folder.
+public class MailboxExporter {
+    public enum Format { MBOX, ZIP }
+
+    private static final DateTimeFormatter ASCTIME =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter ENTRY_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final Format format;
+    private final OutputStream out;
+    private final BodyStore bodies;
+    private final ZipOutputStream zip;
+    private final FromQuoting quoted;
+
+    MailboxExporter(Format format, OutputStream out, BodyStore bodies) {
+        this.format = format;
+        this.out = out;
+        this.bodies = bodies;
+        this.zip = format == Format.ZIP ? new ZipOutputStream(out, StandardCharsets.UTF_8) : null;
+        this.quoted = format == Format.MBOX ? new FromQuoting(out) : null;
+    }
+
+    public void write(String folder, MailboxEntry msg) throws IOException {
+        if (format == Format.ZIP) {
+            ZipEntry entry = new ZipEntry(folder + "/" + ENTRY_TIME.format(Instant.ofEpochMilli(msg.getTimestamp())) +
+                    "-" + msg.getMessageId() + ".eml");
+            entry.setTime(msg.getTimestamp());
+            zip.putNextEntry(entry);
+            zip.write(headers(msg).getBytes(StandardCharsets.UTF_8));
+            bodies.writeTo(msg.getContent().getBodyRef(), zip);
+            zip.closeEntry();
+            return;
+        }
+
+        String separator = "From " + msg.getFrom().replace(' ', '_') + " " +
+                ASCTIME.format(Instant.ofEpochMilli(msg.getTimestamp())) + "\n";
+        out.write(separator.getBytes(StandardCharsets.UTF_8));
+        out.write(headers(msg).getBytes(StandardCharsets.UTF_8));
+        quoted.startBody();
+        int last = bodies.writeTo(msg.getContent().getBodyRef(), quoted);
+        quoted.endBody();
+        out.write(last >= 0 && last != '\n' ? "\n\n".getBytes(StandardCharsets.UTF_8) : new byte[]{'\n'});
+    }
+
+    public void finish() throws IOException {
+        if (zip != null) {
+            zip.finish();
+        }
+        out.flush();
+    }
+
+    private static String headers(MailboxEntry msg) {
+        return "From: " + msg.getFrom() + "\n" +
+                "To: " + msg.getToAsString() + "\n" +
+                "Subject: " + msg.getSubject() + "\n" +
+                "Date: " + DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                        Instant.ofEpochMilli(msg.getTimestamp()).atOffset(ZoneOffset.UTC)) + "\n" +
+                "Message-ID: <" + msg.getMessageId() + "@maillite>\n" +
+                "Status: " + (msg.isRead() ? "RO" : "O") + "\n" +
+                (msg.isArchived() ? "X-MailLite-Archived: yes\n" : "") +
+                "\n";
+    }
+
+    // Holds back the start of each line until it is clear whether it reads ">*From ".
+    private static final class FromQuoting extends FilterOutputStream {
+        private static final byte[] FROM = "From ".getBytes(StandardCharsets.US_ASCII);
+
+        private boolean lineStart;
+        private int quotes;
+        private int matched;
+
+        FromQuoting(OutputStream out) {
+            super(out);
+        }
+
+        void startBody() {
+            lineStart = true;
+            quotes = 0;
+            matched = 0;
+        }
+
+        void endBody() throws IOException {
+            if (lineStart) releasePending();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (lineStart) {
+                if (matched == 0 && b == '>') {
+                    quotes++;
+                    return;
+                }
+                if (b == FROM[matched]) {
+                    if (++matched < FROM.length) return;
+                    out.write('>');
+                    releasePending();
+                    return;
+                }
+                releasePending();
+            }
+            out.write(b);
+            if (b == '\n') startBody();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        private void releasePending() throws IOException {
+            for (int i = 0; i < quotes; i++) {
+                out.write('>');
+            }
+            out.write(FROM, 0, matched);
+            lineStart = false;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package server.storage;
+
+import server.models.MailboxEntry;
+import server.models.MessageContent;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Persistent state of a single mailbox in the RecordWriter format: the entries
+// as of the last rewrite followed by every mutation since. Each mailbox has its
+// own file, so writers to different mailboxes never share a lock or a file and
+// a damaged file costs only the mailbox it belongs to.
+public class MailboxLog {
+    static final String MAGIC = "MLMB";
+    static final int VERSION = 1;
+
+    public static final byte OP_SAVE = 1;
+    public static final byte OP_READ = 2;
+    public static final byte OP_ARCHIVE = 3;
+    public static final byte OP_RESTORE = 4;
+    public static final byte OP_REMOVE = 5;
+    // first record of a rewritten file: the mailbox modseq and expunge floor
+    public static final byte OP_META = 6;
+
+    private static final int FLAG_READ = 1;
+    private static final int FLAG_ARCHIVED = 2;
+
+    // content, read and archived are only meaningful for OP_SAVE, expungedFloor
+    // only for OP_META
+    public record LogRecord(byte op, long messageId, MessageContent content, boolean read, boolean archived,
+                            long modSeq, long expungedFloor) { }
+
+    private final String key;
+    private final File file;
+    private final RecordEncoder encoder = new RecordEncoder(256);
+    private FileOutputStream fileOut;
+    private BufferedOutputStream out;
+    private RecordWriter writer;
+    private int records = 0;
+    // every append ever made through this log, so a rewrite can tell how many
+    // records came in while it ran even if a replay resets records meanwhile
+    private long appends = 0;
+    // a damaged tail could not be copied aside, so the file is left as it is
+    private boolean damaged = false;
+
+    public MailboxLog(String key, File file) {
+        this.key = key;
+        this.file = file;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized void appendEntry(MailboxEntry entry) throws IOException {
+        writeEntry(encoder.reset(), entry);
+        append();
+    }
+
+    public synchronized void appendEntries(List<Mailbox.Change> changes) throws IOException {
+        for (Mailbox.Change change : changes) {
+            appendEntry(change.entry());
+        }
+    }
+
+    public synchronized void appendFlag(byte op, long messageId, long modSeq) throws IOException {
+        encoder.reset().writeByte(op).writeVarLong(messageId).writeVarLong(modSeq);
+        append();
+    }
+
+    public synchronized void appendFlags(byte op, List<Mailbox.Change> changes) throws IOException {
+        for (Mailbox.Change change : changes) {
+            appendFlag(op, change.entry().getId(), change.modSeq());
+        }
+    }
+
+    private void append() throws IOException {
+        if (damaged) throw new IOException("Mailbox " + key + " has a damaged tail that could not be saved");
+        if (out == null) {
+            boolean fresh = !file.exists() || file.length() == 0;
+            fileOut = new FileOutputStream(file, true);
+            out = new BufferedOutputStream(fileOut, 8 * 1024);
+            writer = new RecordWriter(out);
+            if (fresh) {
+                writer.writeHeader(MAGIC, VERSION);
+            }
+        }
+        writer.write(encoder);
+        records++;
+        appends++;
+    }
+
+    public synchronized void force() throws IOException {
+        if (out == null) return;
+        out.flush();
+        fileOut.getChannel().force(false);
+    }
+
+    // Worth rewriting once the log holds well over one record per live entry.
+    public synchronized boolean needsRewrite(int liveEntries, int minRecords) {
+        return needsRewrite(records, liveEntries, minRecords);
+    }
+
+    public static boolean needsRewrite(int records, int liveEntries, int minRecords) {
+        return records > Math.max(minRecords, liveEntries * 2);
+    }
+
+    public synchronized int getRecords() {
+        return records;
+    }
+
+    // Replaces the file with a META record, the remembered expunges and one ENTRY
+    // record per current entry, in three steps so that neither the mailbox nor
+    // this log is held for the slow part: start() marks the end of the log while
+    // the caller holds the mailbox still (Mailbox.snapshot), write() writes the
+    // snapshot to a temp file holding nothing, and finish() copies over whatever
+    // was appended since the mark and swaps the files under this log's monitor.
+    public final class Rewrite {
+        private long from = -1;
+        private long appendsAtStart;
+        private boolean empty;
+        private int written;
+        private final File temp = new File(file.getPath() + ".tmp");
+
+        public void start() throws IOException {
+            synchronized (MailboxLog.this) {
+                if (damaged) throw new IOException("Mailbox " + key + " has a damaged tail that could not be saved");
+                if (out != null) out.flush();
+                from = file.length() > 0 ? file.length() : RecordReader.HEADER_LENGTH;
+                appendsAtStart = appends;
+            }
+        }
+
+        // The records that were in the file when the rewrite started; the file
+        // is only read up to that point, so appends can carry on meanwhile.
+        public void replay(Consumer<LogRecord> handler) throws IOException {
+            if (from < 0) throw new IllegalStateException("Rewrite of " + key + " not started");
+            if (file.length() == 0) return;
+
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+                RecordReader reader = new RecordReader(in);
+                int version = reader.readHeader(MAGIC);
+                if (version != VERSION) throw new IOException("Unsupported mailbox version " + version);
+                RecordDecoder record;
+                while (reader.getValidLength() < from && (record = reader.next()) != null) {
+                    handler.accept(decode(record));
+                }
+                if (reader.getValidLength() != from) {
+                    throw new IOException("Mailbox " + key + " has an unreadable record at byte " +
+                            reader.getValidLength());
+                }
+            }
+        }
+
+        public void write(Mailbox.Snapshot mailbox, Flushable forceFirst) throws IOException {
+            if (from < 0) throw new IllegalStateException("Rewrite of " + key + " not started");
+            empty = mailbox.empty() && mailbox.modSeq() == 0;
+            written = 0;
+            try (FileOutputStream tempOut = new FileOutputStream(temp)) {
+                BufferedOutputStream buffered = new BufferedOutputStream(tempOut, 64 * 1024);
+                RecordWriter tempWriter = new RecordWriter(buffered);
+                RecordEncoder record = new RecordEncoder(256);
+                tempWriter.writeHeader(MAGIC, VERSION);
+                tempWriter.write(record.reset().writeByte(OP_META).writeVarLong(mailbox.modSeq())
+                        .writeVarLong(mailbox.expungedFloor()));
+                for (Map.Entry<Long, Long> tombstone : mailbox.tombstones().entrySet()) {
+                    tempWriter.write(record.reset().writeByte(OP_REMOVE).writeVarLong(tombstone.getValue())
+                            .writeVarLong(tombstone.getKey()));
+                }
+                for (MailboxEntry entry : mailbox.entries()) {
+                    tempWriter.write(writeEntry(record.reset(), entry));
+                    written++;
+                }
+                buffered.flush();
+                forceFirst.flush();
+                tempOut.getChannel().force(true);
+            }
+        }
+
+        // Appends made since start() are copied byte for byte, since records
+        // carry their own framing; the temp file is forced again before the move.
+        public void finish(Flushable forceFirst) throws IOException {
+            synchronized (MailboxLog.this) {
+                if (damaged) throw new IOException("Mailbox " + key + " has a damaged tail that could not be saved");
+                if (out != null) out.flush();
+                long end = file.length();
+                if (end > 0 && end < from) throw new IOException("Mailbox " + key + " was truncated during rewrite");
+                int appended = (int) (appends - appendsAtStart);
+
+                if (empty && appended == 0) {
+                    closeOutput(false);
+                    Files.deleteIfExists(file.toPath());
+                    Files.deleteIfExists(temp.toPath());
+                    records = 0;
+                    return;
+                }
+
+                if (end > from) {
+                    forceFirst.flush();
+                    try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                         FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+                                 StandardOpenOption.APPEND)) {
+                        for (long position = from; position < end; ) {
+                            position += source.transferTo(position, end - position, target);
+                        }
+                        target.force(true);
+                    }
+                }
+
+                // everything in the old file is in the forced temp file now
+                closeOutput(false);
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                records = written + appended;
+            }
+        }
+
+        public void abandon() {
+            try {
+                Files.deleteIfExists(temp.toPath());
+            } catch (IOException e) {
+                System.err.println("❌ Failed to delete " + temp + ": " + e.getMessage());
+            }
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        MailboxLog log() {
+            return MailboxLog.this;
+        }
+
+        // Records in the file once finished.
+        public int getRecords() {
+            synchronized (MailboxLog.this) {
+                return records;
+            }
+        }
+    }
+
+    public synchronized int replay(Consumer<LogRecord> handler) throws IOException {
+        // appends made while the mailbox was evicted may still be buffered
+        if (out != null) out.flush();
+        if (!file.exists() || file.length() == 0) return 0;
+
+        int applied = 0;
+        long validLength;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            RecordReader reader = new RecordReader(in);
+            try {
+                int version = reader.readHeader(MAGIC);
+                if (version != VERSION) throw new IOException("Unsupported mailbox version " + version);
+            } catch (IOException e) {
+                setAside(e.getMessage());
+                return 0;
+            }
+
+            // a record that passes its CRC but cannot be decoded ends the
+            // intact prefix just like a torn one
+            RecordDecoder record;
+            validLength = reader.getValidLength();
+            while ((record = reader.next()) != null) {
+                LogRecord decoded;
+                try {
+                    decoded = decode(record);
+                } catch (IOException e) {
+                    System.out.println("⚠️ Mailbox " + key + " has an unreadable record at byte " + validLength +
+                            " (" + e.getMessage() + ")");
+                    break;
+                }
+                handler.accept(decoded);
+                applied++;
+                validLength = reader.getValidLength();
+            }
+        }
+
+        // whatever follows the intact prefix is kept for inspection before it
+        // is cut off, since it may be more than a torn last record
+        if (validLength < file.length()) {
+            File aside = new File(file.getPath() + ".unreadable");
+            System.out.println("⚠️ Mailbox " + key + " has a damaged tail - copied to " + aside +
+                    ", truncating at byte " + validLength);
+            try {
+                Files.copy(file.toPath(), aside.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                damaged = true;
+                throw new IOException("Cannot save the damaged tail of mailbox " + key + ": " + e.getMessage(), e);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+        records = applied;
+        return applied;
+    }
+
+    public synchronized void close() throws IOException {
+        closeOutput(true);
+    }
+
+    public long getSizeBytes() {
+        return file.length();
+    }
+
+    private void closeOutput(boolean force) throws IOException {
+        if (out == null) return;
+        try {
+            out.flush();
+            if (force) fileOut.getChannel().force(false);
+        } finally {
+            out.close();
+            out = null;
+            fileOut = null;
+            writer = null;
+        }
+    }
+
+    // A mailbox file we cannot parse is kept for inspection rather than appended to.
+    private void setAside(String reason) {
+        File aside = new File(file.getPath() + ".unreadable");
+        System.out.println("⚠️ Mailbox file " + file + " is unreadable (" + reason + ") - moved to " + aside);
+        if (!file.renameTo(aside)) {
+            System.err.println("❌ Could not move unreadable mailbox file aside");
+        }
+    }
+
+    private static RecordEncoder writeEntry(RecordEncoder record, MailboxEntry entry) {
+        int flags = (entry.isRead() ? FLAG_READ : 0) | (entry.isArchived() ? FLAG_ARCHIVED : 0);
+        return record.writeByte(OP_SAVE).writeContent(entry.getContent()).writeByte(flags)
+                .writeVarLong(entry.getModSeq());
+    }
+
+    private static LogRecord decode(RecordDecoder record) throws IOException {
+        byte op = (byte) record.readByte();
+        if (op == OP_SAVE) {
+            MessageContent content = record.readContent();
+            int flags = record.readByte();
+            return new LogRecord(op, content.getId(), content,
+                    (flags & FLAG_READ) != 0, (flags & FLAG_ARCHIVED) != 0, record.readVarLong(), 0);
+        }
+        if (op == OP_META) {
+            return new LogRecord(op, 0, null, false, false, record.readVarLong(), record.readVarLong());
+        }
+        return new LogRecord(op, record.readVarLong(), null, false, false, record.readVarLong(), 0);
+    }
+}
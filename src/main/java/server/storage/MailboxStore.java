@@ -0,0 +1,350 @@
+package server.storage;
+
+import server.models.MailboxEntry;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// Owns one MailboxLog per mailbox key under a directory and decides when appends
+// are durable. Appends to different mailboxes proceed in parallel; commit(seq)
+// blocks until the record is as durable as the configured mode promises, and in
+// GROUP mode one flusher thread forces every mailbox touched in its window.
+public class MailboxStore implements Closeable {
+    public enum Durability { FSYNC, GROUP, ASYNC }
+
+    private static final String SUFFIX = ".mbx";
+
+    private final File dir;
+    private final Durability durability;
+    private final long groupCommitMillis;
+    // forced before any mailbox file so a durable record never points at unsynced data
+    private final Flushable forceFirst;
+    private final Map<String, MailboxLog> logs = new ConcurrentHashMap<>();
+
+    private Set<MailboxLog> dirty = new HashSet<>();
+    private Thread flusher;
+    private boolean closed = false;
+    private long appendedSeq = 0;
+    // every append up to here has been forced, or has failed to be
+    private long flushedSeq = 0;
+    // flushes that failed, by the last seq they covered; adjacent ones are merged
+    private final NavigableMap<Long, Failure> failures = new TreeMap<>();
+
+    private record Failure(long after, IOException error) { }
+
+    public MailboxStore(String path, Durability durability, long groupCommitMillis, Flushable forceFirst) {
+        this.dir = new File(path);
+        this.durability = durability;
+        this.groupCommitMillis = groupCommitMillis;
+        this.forceFirst = forceFirst;
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+    }
+
+    // Keys of every mailbox that has a file on disk.
+    public List<String> existingKeys() {
+        List<String> keys = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                keys.add(URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), StandardCharsets.UTF_8));
+            }
+        }
+        return keys;
+    }
+
+    public int replay(String key, Consumer<MailboxLog.LogRecord> handler) throws IOException {
+        return log(key).replay(handler);
+    }
+
+    public long appendEntry(String key, MailboxEntry entry) throws IOException {
+        MailboxLog log = log(key);
+        log.appendEntry(entry);
+        return appended(log);
+    }
+
+    // A batch of new entries costs one durable write, as for appendFlags.
+    public long appendEntries(String key, List<Mailbox.Change> changes) throws IOException {
+        MailboxLog log = log(key);
+        log.appendEntries(changes);
+        return appended(log);
+    }
+
+    public long appendFlag(String key, byte op, long messageId, long modSeq) throws IOException {
+        MailboxLog log = log(key);
+        log.appendFlag(op, messageId, modSeq);
+        return appended(log);
+    }
+
+    // A batch of flag changes costs one durable write, not one per record.
+    public long appendFlags(String key, byte op, List<Mailbox.Change> changes) throws IOException {
+        MailboxLog log = log(key);
+        log.appendFlags(op, changes);
+        return appended(log);
+    }
+
+    private long appended(MailboxLog log) throws IOException {
+        if (durability == Durability.FSYNC) {
+            forceFirst.flush();
+            log.force();
+            return 0;
+        }
+
+        synchronized (this) {
+            if (closed) throw new IOException("Mailbox store is closed");
+            dirty.add(log);
+            appendedSeq++;
+            if (flusher == null) {
+                flusher = new Thread(this::runFlusher, "Mailbox-Flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            if (appendedSeq == flushedSeq + 1) {
+                notifyAll();
+            }
+            return appendedSeq;
+        }
+    }
+
+    public void commit(long seq) throws IOException {
+        if (durability == Durability.GROUP) {
+            awaitDurable(seq);
+        }
+    }
+
+    // Throws the flush error to every caller whose record was in a failed flush,
+    // even once later flushes have succeeded.
+    private synchronized void awaitDurable(long seq) throws IOException {
+        while (flushedSeq < seq) {
+            if (closed && flusher == null) throw new IOException("Mailbox store closed before commit");
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for mailbox commit");
+            }
+        }
+        Map.Entry<Long, Failure> failed = failures.ceilingEntry(seq);
+        if (failed != null && failed.getValue().after() < seq) {
+            throw new IOException("Mailbox flush failed: " + failed.getValue().error().getMessage(),
+                    failed.getValue().error());
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            synchronized (this) {
+                while (!closed && appendedSeq == flushedSeq) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) return;
+            }
+
+            try {
+                Thread.sleep(groupCommitMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            flushDirty();
+        }
+    }
+
+    // Every append registers its log before taking a sequence number, so forcing
+    // the logs collected here makes everything up to the captured target durable.
+    // A failed force is not retried: after a failed fsync the kernel may already
+    // have dropped the dirty pages, so a later success would prove nothing.
+    private void flushDirty() {
+        long from;
+        long target;
+        Set<MailboxLog> batch;
+        synchronized (this) {
+            from = flushedSeq;
+            target = appendedSeq;
+            batch = dirty;
+            dirty = new HashSet<>();
+        }
+
+        IOException failure = null;
+        try {
+            forceFirst.flush();
+            for (MailboxLog log : batch) {
+                log.force();
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Mailbox group commit failed: " + e.getMessage());
+            failure = e;
+        }
+
+        synchronized (this) {
+            if (failure != null) {
+                Failure previous = failures.get(from);
+                if (previous != null) {
+                    failures.remove(from);
+                    from = previous.after();
+                }
+                failures.put(target, new Failure(from, failure));
+            }
+            flushedSeq = Math.max(flushedSeq, target);
+            notifyAll();
+        }
+    }
+
+    public boolean needsRewrite(String key, int liveEntries, int minRecords) {
+        MailboxLog log = logs.get(key);
+        return log != null && log.needsRewrite(liveEntries, minRecords);
+    }
+
+    public int getRecordCount(String key) {
+        MailboxLog log = logs.get(key);
+        return log != null ? log.getRecords() : 0;
+    }
+
+    // The mailbox is only held still while it is copied; changes made while the
+    // copy is written out are appended as usual and carried over by finish().
+    public void rewrite(Mailbox mailbox) throws IOException {
+        MailboxLog.Rewrite rewrite = log(mailbox.getKey()).new Rewrite();
+        try {
+            Mailbox.Snapshot snapshot = mailbox.snapshot(rewrite::start);
+            rewrite.write(snapshot, forceFirst);
+            rewrite.finish(forceFirst);
+        } catch (IOException | RuntimeException e) {
+            rewrite.abandon();
+            throw e;
+        }
+    }
+
+    // Rewrite of a mailbox that is not in memory, in the same three steps. The
+    // caller orders startRewrite and finishRewrite against appends to the file
+    // and against release(); writeRewrite rebuilds the mailbox from the file
+    // as of the start and needs no lock.
+    public MailboxLog.Rewrite startRewrite(String key) throws IOException {
+        MailboxLog.Rewrite rewrite = log(key).new Rewrite();
+        rewrite.start();
+        return rewrite;
+    }
+
+    public void writeRewrite(MailboxLog.Rewrite rewrite) throws IOException {
+        Mailbox mailbox = new Mailbox(rewrite.getKey());
+        Map<Long, MailboxEntry> entries = new HashMap<>();
+        rewrite.replay(record -> {
+            long messageId = record.messageId();
+            MailboxEntry entry = entries.get(messageId);
+            switch (record.op()) {
+                case MailboxLog.OP_META -> mailbox.restoreModSeq(record.modSeq(), record.expungedFloor());
+                case MailboxLog.OP_SAVE -> {
+                    if (entry == null) {
+                        entry = new MailboxEntry(record.content(), record.read(), record.archived());
+                        entries.put(messageId, entry);
+                        mailbox.add(entry, record.modSeq());
+                    }
+                }
+                case MailboxLog.OP_READ -> {
+                    if (entry != null) mailbox.markRead(entry, record.modSeq());
+                }
+                case MailboxLog.OP_ARCHIVE, MailboxLog.OP_RESTORE -> {
+                    if (entry != null) mailbox.setArchived(entry, record.op() == MailboxLog.OP_ARCHIVE, record.modSeq());
+                }
+                case MailboxLog.OP_REMOVE -> {
+                    if (entry != null) {
+                        entries.remove(messageId);
+                        mailbox.remove(entry, record.modSeq());
+                    } else {
+                        mailbox.noteExpunged(messageId, record.modSeq());
+                    }
+                }
+                default -> { }
+            }
+            mailbox.restoreModSeq(record.modSeq(), 0);
+        });
+        rewrite.write(mailbox.snapshot(() -> { }), forceFirst);
+    }
+
+    // Fails if the file was released and opened again since the rewrite started,
+    // since appends would then have gone through a log this rewrite cannot see.
+    public void finishRewrite(MailboxLog.Rewrite rewrite) throws IOException {
+        if (logs.get(rewrite.getKey()) != rewrite.log()) {
+            throw new IOException("Mailbox " + rewrite.getKey() + " was reopened during rewrite");
+        }
+        rewrite.finish(forceFirst);
+    }
+
+    // Closes a mailbox's file, which makes it durable, and forgets it until the
+    // next replay or append opens it again.
+    public void release(String key) throws IOException {
+        MailboxLog log = logs.get(key);
+        if (log == null) return;
+        log.close();
+        logs.remove(key, log);
+    }
+
+    public long getSizeBytes() {
+        long total = 0;
+        for (MailboxLog log : logs.values()) {
+            total += log.getSizeBytes();
+        }
+        return total;
+    }
+
+    public int getMailboxCount() {
+        return logs.size();
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    @Override
+    public void close() {
+        Thread running;
+        synchronized (this) {
+            closed = true;
+            running = flusher;
+            notifyAll();
+        }
+
+        if (running != null) {
+            try {
+                running.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            forceFirst.flush();
+        } catch (IOException e) {
+            System.err.println("❌ Failed to flush before closing mailboxes: " + e.getMessage());
+        }
+        for (MailboxLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.err.println("❌ Failed to close mailbox " + log.getKey() + ": " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            flushedSeq = appendedSeq;
+            flusher = null;
+            notifyAll();
+        }
+    }
+
+    private MailboxLog log(String key) {
+        return logs.computeIfAbsent(key, k ->
+                new MailboxLog(k, new File(dir, URLEncoder.encode(k, StandardCharsets.UTF_8) + SUFFIX)));
+    }
+}
@@ -0,0 +1,345 @@
+package server.storage;
+
+import server.models.Message;
+import server.utils.MessageIds;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reads legacy msg_<millis>_<n>.txt files and mbox files (as written by EXPORT,
+// or any mboxrd) into Messages. Finding the sources and splitting mbox files
+// into messages is sequential; the parsing itself is a fork-join task per
+// batch, so the pool's work stealing spreads it over every core. Only the
+// batch being parsed and the one being written are held in memory.
+public class MessageImporter implements Closeable {
+    private static final String LEGACY_PREFIX = "msg_";
+    private static final String LEGACY_SUFFIX = ".txt";
+    private static final String MBOX_SUFFIX = ".mbox";
+    private static final String OWN_MESSAGE_ID_HOST = "@maillite>";
+    // below this many sources a task parses them itself instead of splitting
+    private static final int SPLIT_THRESHOLD = 64;
+
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private final Deque<Path> inputs = new ArrayDeque<>();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private DirectoryStream<Path> directory;
+    private Iterator<Path> directoryEntries;
+    private BufferedReader mbox;
+    private Path mboxPath;
+    private String pendingLine;
+
+    private interface Source {
+        Message parse() throws IOException;
+    }
+
+    // Directories are scanned for msg_*.txt and *.mbox files; files are read
+    // as mbox if they end in .mbox and as legacy messages otherwise.
+    public MessageImporter(List<File> sources) {
+        for (File source : sources) {
+            inputs.add(source.toPath());
+        }
+    }
+
+    // Whether a file of this name is read as an mbox or a legacy message when
+    // found in a directory.
+    public static boolean accepts(String name) {
+        return name.endsWith(MBOX_SUFFIX) || (name.startsWith(LEGACY_PREFIX) && name.endsWith(LEGACY_SUFFIX));
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    // Starts parsing up to max further messages; the task yields them in source
+    // order without the ones that failed to parse. Null once everything is read.
+    public ForkJoinTask<List<Message>> parseNext(int max) throws IOException {
+        List<Source> batch = new ArrayList<>(max);
+        Source source;
+        while (batch.size() < max && (source = nextSource()) != null) {
+            batch.add(source);
+        }
+        if (batch.isEmpty()) return null;
+        return pool.submit(new ParseTask(batch.toArray(new Source[0]), 0, batch.size()));
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdown();
+        if (mbox != null) mbox.close();
+        if (directory != null) directory.close();
+    }
+
+    private final class ParseTask extends RecursiveTask<List<Message>> {
+        private static final long serialVersionUID = 1L;
+
+        // tasks are never serialized; the sources are lambdas over open files
+        private final transient Source[] sources;
+        private final int from;
+        private final int to;
+
+        ParseTask(Source[] sources, int from, int to) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Message> compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                ParseTask left = new ParseTask(sources, from, middle);
+                left.fork();
+                List<Message> right = new ParseTask(sources, middle, to).compute();
+                List<Message> parsed = left.join();
+                parsed.addAll(right);
+                return parsed;
+            }
+
+            List<Message> parsed = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                try {
+                    parsed.add(sources[i].parse());
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println("❌ Skipped unreadable message during import: " + e.getMessage());
+                }
+            }
+            return parsed;
+        }
+    }
+
+    private Source nextSource() throws IOException {
+        while (true) {
+            if (mbox != null) {
+                String raw = nextMboxMessage();
+                if (raw != null) {
+                    Path from = mboxPath;
+                    return () -> parseMbox(raw, from);
+                }
+                mbox.close();
+                mbox = null;
+            }
+
+            if (directoryEntries != null) {
+                if (directoryEntries.hasNext()) {
+                    Path path = directoryEntries.next();
+                    String name = path.getFileName().toString();
+                    if (!accepts(name)) continue;
+                    if (name.endsWith(MBOX_SUFFIX)) {
+                        openMbox(path);
+                    } else {
+                        return () -> parseLegacy(path);
+                    }
+                    continue;
+                }
+                directory.close();
+                directory = null;
+                directoryEntries = null;
+            }
+
+            Path input = inputs.poll();
+            if (input == null) return null;
+            if (Files.isDirectory(input)) {
+                directory = Files.newDirectoryStream(input);
+                directoryEntries = directory.iterator();
+            } else if (input.getFileName().toString().endsWith(MBOX_SUFFIX)) {
+                openMbox(input);
+            } else {
+                return () -> parseLegacy(input);
+            }
+        }
+    }
+
+    private void openMbox(Path path) throws IOException {
+        mbox = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        mboxPath = path;
+        pendingLine = mbox.readLine();
+    }
+
+    // The text of the next message, without its "From " separator line. A line
+    // only separates messages when it follows a blank line.
+    private String nextMboxMessage() throws IOException {
+        while (pendingLine != null && !pendingLine.startsWith("From ")) {
+            pendingLine = mbox.readLine();
+        }
+        if (pendingLine == null) return null;
+
+        StringBuilder text = new StringBuilder();
+        boolean blank = false;
+        String line;
+        while ((line = mbox.readLine()) != null) {
+            if (blank && line.startsWith("From ")) break;
+            text.append(line).append('\n');
+            blank = line.isEmpty();
+        }
+        pendingLine = line;
+        return text.toString();
+    }
+
+    // "key:value" lines up to "body:", which runs to the end of the file. The
+    // file name carries the original ID and its millisecond timestamp.
+    static Message parseLegacy(Path file) throws IOException {
+        String text = Files.readString(file, StandardCharsets.UTF_8);
+        Map<String, String> fields = new HashMap<>();
+        String body = "";
+        int position = 0;
+        while (position < text.length()) {
+            int end = text.indexOf('\n', position);
+            if (end < 0) end = text.length();
+            String line = text.substring(position, end);
+            if (line.startsWith("body:")) {
+                body = text.substring(position + "body:".length());
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) fields.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            position = end + 1;
+        }
+
+        String from = fields.get("from");
+        String to = fields.get("to");
+        if (from == null || to == null) throw new IOException(file + " has no from: or to: line");
+
+        String name = file.getFileName().toString();
+        String messageId = null;
+        long timestamp = 0;
+        if (name.startsWith(LEGACY_PREFIX) && name.endsWith(LEGACY_SUFFIX)) {
+            String candidate = "MSG_" + name.substring(LEGACY_PREFIX.length(), name.length() - LEGACY_SUFFIX.length());
+            try {
+                timestamp = MessageIds.timestamp(MessageIds.parse(candidate));
+                messageId = candidate;
+            } catch (IllegalArgumentException e) {
+                // renamed file; a new ID is assigned
+            }
+        }
+        if (messageId == null) {
+            timestamp = parseLegacyDate(fields.get("timestamp"), Files.getLastModifiedTime(file).toMillis());
+        }
+
+        Message msg = new Message(messageId, from, splitAddresses(to), fields.getOrDefault("subject", ""),
+                stripTrailingNewlines(body.replace("\r\n", "\n")), timestamp);
+        msg.setRead(Boolean.parseBoolean(fields.get("isRead")));
+        msg.setArchived(Boolean.parseBoolean(fields.get("isArchived")));
+        return msg;
+    }
+
+    // Headers up to the first blank line (continuation lines folded in), then
+    // the body with one '>' taken off every ">*From " line.
+    static Message parseMbox(String text, Path source) throws IOException {
+        int split = text.indexOf("\n\n");
+        String head = split < 0 ? text : text.substring(0, split);
+        String rawBody = split < 0 ? "" : text.substring(split + 2);
+
+        Map<String, String> headers = new HashMap<>();
+        String last = null;
+        for (String line : head.split("\n")) {
+            if ((line.startsWith(" ") || line.startsWith("\t")) && last != null) {
+                headers.merge(last, " " + line.trim(), String::concat);
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            last = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            headers.putIfAbsent(last, line.substring(colon + 1).trim());
+        }
+
+        String from = headers.get("from");
+        if (from == null) throw new IOException("Message in " + source + " has no From: header");
+
+        StringBuilder body = new StringBuilder(rawBody.length());
+        for (String line : rawBody.split("\n", -1)) {
+            int quotes = 0;
+            while (quotes < line.length() && line.charAt(quotes) == '>') quotes++;
+            boolean quoted = quotes > 0 && line.startsWith("From ", quotes);
+            body.append(quoted ? line.substring(1) : line).append('\n');
+        }
+
+        String messageId = null;
+        String header = headers.get("message-id");
+        if (header != null && header.startsWith("<") && header.endsWith(OWN_MESSAGE_ID_HOST)) {
+            String candidate = header.substring(1, header.length() - OWN_MESSAGE_ID_HOST.length());
+            try {
+                MessageIds.parse(candidate);
+                messageId = candidate;
+            } catch (RuntimeException e) {
+                // not one of ours after all; a new ID is assigned
+            }
+        }
+
+        long timestamp = System.currentTimeMillis();
+        String date = headers.get("date");
+        if (date != null) {
+            try {
+                timestamp = ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // keep the import time
+            }
+        }
+
+        String to = headers.getOrDefault("to", "");
+        Message msg = new Message(messageId, address(from), splitAddresses(to), headers.getOrDefault("subject", ""),
+                stripTrailingNewlines(body.toString()), timestamp);
+        String status = headers.getOrDefault("status", "");
+        msg.setRead(status.indexOf('R') >= 0);
+        msg.setArchived("yes".equalsIgnoreCase(headers.get("x-maillite-archived")));
+        return msg;
+    }
+
+    private static long parseLegacyDate(String text, long fallback) {
+        if (text == null) return fallback;
+        try {
+            return new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).parse(text).getTime();
+        } catch (ParseException e) {
+            return fallback;
+        }
+    }
+
+    private static List<String> splitAddresses(String list) {
+        return Arrays.stream(list.split(","))
+                .map(MessageImporter::address)
+                .filter(s -> !s.isEmpty())
+                .toList();
+    }
+
+    // "Name <addr>" -> "addr"
+    private static String address(String text) {
+        int open = text.indexOf('<');
+        int close = text.indexOf('>', open + 1);
+        return (open >= 0 && close > open ? text.substring(open + 1, close) : text).trim();
+    }
+
+    private static String stripTrailingNewlines(String text) {
+        int end = text.length();
+        while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r')) end--;
+        return text.substring(0, end);
+    }
+}
@@ -1,16 +1,111 @@
 package server.storage;
 
+import server.models.BodyRef;
+import server.models.MailboxEntry;
 import server.models.Message;
+import server.models.MessageContent;
+import server.utils.Config;
+import server.utils.MessageIds;
 
 import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Predicate;
 
 public class MessageManager {
-    private final Map<String, List<Message>> userMessages;
-    private static final String MESSAGES_FILE = "data/messages.dat";
-    private AtomicLong nextId;
+    private final Map<String, Mailbox> userMessages;
+    // messageId -> (mailbox key -> that mailbox's entry)
+    private final Map<Long, Map<String, MailboxEntry>> messageIndex;
+    private static final String LEGACY_FILE = "data/messages.dat";
+    private static final String MAILBOX_DIR = "data/mailboxes";
+    private static final String BODY_DIR = "data/bodies";
+    private static final String INDEX_DIR = "data/index";
+    private static final String COLD_DIR = "data/cold";
+    private static final String EXPORT_DIR = "data/exports";
+    // mbox and msg_*.txt files dropped here are imported by importDropped
+    private static final String IMPORT_DIR = "data/import";
+    // msg_<millis>_<n>.txt files from before the data/ layout; imported once
+    private static final String LEGACY_MESSAGES_DIR = "messages";
+    private final MailboxStore store;
+    private final BodyStore bodyStore;
+    private final ColdStore coldStore;
+    // mailbox key -> inverted index of that mailbox, for SEARCH
+    private final Map<String, SearchIndex> searchIndexes = new ConcurrentHashMap<>();
+    private final MessageIds.Generator ids = new MessageIds.Generator(Config.NODE_ID);
+
+    // Mailboxes of offline users are dropped from memory, least recently used
+    // first, once the resident ones hold more than Config.MAILBOX_CACHE_MAX_ENTRIES
+    // entries, and replayed from their files when their owner next asks for
+    // them. New mail for an evicted mailbox is appended to its file without
+    // loading it. Everything that works on mailboxes holds the read lock;
+    // eviction takes the write lock. Cold storage only sees resident mailboxes.
+    private final ReentrantReadWriteLock residency = new ReentrantReadWriteLock();
+    private final Map<String, EvictedMailbox> evicted = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // warms a user's mailboxes between HELO and their first LIST; best effort,
+    // so a full queue just drops the request
+    private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(
+            Config.PREFETCH_THREADS, Config.PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Config.PREFETCH_QUEUE), task -> {
+                Thread thread = new Thread(task, "Mailbox-Prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final Set<String> prefetching = ConcurrentHashMap.newKeySet();
+
+    // EXPORT runs here, so however many clients export at once only
+    // Config.EXPORT_THREADS of them are reading bodies
+    private final ThreadPoolExecutor exportPool = new ThreadPoolExecutor(
+            Config.EXPORT_THREADS, Config.EXPORT_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Config.EXPORT_QUEUE), task -> {
+                Thread thread = new Thread(task, "Mailbox-Export");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // What stays in memory of an evicted mailbox: enough to append new mail to
+    // its file without replaying it. Its monitor orders those appends against
+    // the reload, so a reload never misses one.
+    private static final class EvictedMailbox {
+        // bodies of its entries, retained so their segments are not dropped
+        final List<BodyRef> pinned;
+        long modSeq;
+        int unread;
+        // records in its file, to tell when it is worth compacting
+        int records;
+        // timestamp of its oldest archived entry (Long.MAX_VALUE if none), so
+        // retention only reads the file when something in it can expire
+        long oldestArchived;
+        // the log has been opened since it was last closed
+        boolean open = true;
+        boolean reloaded;
+        // saved to its file with the next round of closeEvictedLogs
+        SearchIndex unsaved;
+
+        EvictedMailbox(List<BodyRef> pinned, long modSeq, int unread, int records, long oldestArchived,
+                       SearchIndex unsaved) {
+            this.pinned = pinned;
+            this.modSeq = modSeq;
+            this.unread = unread;
+            this.records = records;
+            this.oldestArchived = oldestArchived;
+            this.unsaved = unsaved;
+        }
+    }
 
     private Map<String, Integer> sendCounts = new ConcurrentHashMap<>();
     private Map<String, Integer> listCounts = new ConcurrentHashMap<>();
@@ -18,124 +113,457 @@ public class MessageManager {
 
     public MessageManager() {
         this.userMessages = new ConcurrentHashMap<>();
-        this.nextId = new AtomicLong(1);
+        this.messageIndex = new ConcurrentHashMap<>();
+        prefetcher.allowCoreThreadTimeOut(true);
+        exportPool.allowCoreThreadTimeOut(true);
+        try {
+            this.bodyStore = new BodyStore(BODY_DIR);
+            this.coldStore = new ColdStore(COLD_DIR);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open message stores under data/", e);
+        }
+        this.store = new MailboxStore(MAILBOX_DIR,
+                MailboxStore.Durability.valueOf(Config.JOURNAL_DURABILITY), Config.GROUP_COMMIT_MILLIS,
+                bodyStore);
         loadMessages();
+        importLegacyMessages();
         System.out.println("✅ MessageManager initialized");
     }
 
-    public String saveMessage(String from, String recipients, String subject, String body) {
+    // messageId is null when the message was stored nowhere. Otherwise failed
+    // lists the recipients (and "SENT" for the sender's copy) whose mailbox
+    // could not take it; the others keep their copy.
+    public record SaveResult(String messageId, List<String> failed) { }
+
+    public SaveResult saveMessage(String from, String recipients, String subject, String body) {
+        residency.readLock().lock();
+        BodyRef bodyRef = null;
         try {
-            String messageId = "MSG_" + System.currentTimeMillis() + "_" + nextId.getAndIncrement();
-            List<String> recipList = Arrays.stream(recipients.split(","))
-                    .map(String::trim)
-                    .filter(s -> !s.isEmpty())
-                    .toList();
+            try {
+                long id = ids.next();
+                String messageId = MessageIds.format(id);
+                List<String> recipList = Arrays.stream(recipients.split(","))
+                        .map(String::trim)
+                        .filter(s -> !s.isEmpty())
+                        .toList();
+
+                if (recipList.isEmpty()) return new SaveResult(null, List.of());
+
+                long timestamp = MessageIds.timestamp(id);
+                bodyRef = bodyStore.append(body);
+                MessageContent content = new MessageContent(id, from, recipList, subject,
+                        bodyRef, body.length(), timestamp);
+
+                List<String> mailboxKeys = new ArrayList<>();
+                for (String to : recipList) {
+                    String userKey = to.toLowerCase();
+                    if (!mailboxKeys.contains(userKey)) mailboxKeys.add(userKey);
+                }
+                mailboxKeys.add(from.toLowerCase() + "_sent");
+
+                Map<String, Integer> terms = SearchIndex.tokenize(subject, from, body);
+                long seq = 0;
+                List<String> failed = new ArrayList<>();
+                for (String key : mailboxKeys) {
+                    MailboxEntry entry = new MailboxEntry(content);
+                    try {
+                        long appended = appendToEvicted(key, entry);
+                        if (appended != Mailbox.UNCHANGED) {
+                            // indexed for search when the mailbox is reloaded
+                            seq = Math.max(seq, appended);
+                            continue;
+                        }
+                        seq = Math.max(seq, addEntry(key, entry, modSeq -> appendEntry(key, entry)));
+                    } catch (UncheckedIOException e) {
+                        System.err.println("❌ Could not add " + messageId + " to " + key + ": " +
+                                e.getCause().getMessage());
+                        failed.add(key.endsWith("_sent") ? "SENT" : key);
+                        continue;
+                    }
+                    searchIndex(key).add(id, terms);
+                }
+                if (failed.size() == mailboxKeys.size()) return new SaveResult(null, failed);
+
+                sendCounts.merge(from, 1, Integer::sum);
 
-            if (recipList.isEmpty()) return null;
+                store.commit(seq);
 
-            long timestamp = System.currentTimeMillis();
+                System.out.println("📤 Message saved: " + messageId + " from " + from + " to " + recipients +
+                        (failed.isEmpty() ? "" : " (not delivered to " + String.join(", ", failed) + ")"));
+                return new SaveResult(messageId, failed);
 
-            for (String to : recipList) {
-                Message msg = new Message(messageId, from, to, subject, body, timestamp);
-                String userKey = to.toLowerCase();
-                userMessages.computeIfAbsent(userKey, k -> new ArrayList<>()).add(0, msg);
+            } catch (Exception e) {
+                System.err.println("❌ Error saving message: " + e.getMessage());
+                return new SaveResult(null, List.of());
             }
+        } finally {
+            // the entries hold their own reference now
+            if (bodyRef != null) bodyStore.release(bodyRef);
+            residency.readLock().unlock();
+        }
+    }
 
-            Message sentMsg = new Message(messageId, from, recipList, subject, body, timestamp);
-            String sentKey = from.toLowerCase() + "_sent";
-            userMessages.computeIfAbsent(sentKey, k -> new ArrayList<>()).add(0, sentMsg);
+    public Collection<MailboxEntry> getMessagesForUser(String username, String folder) {
+        residency.readLock().lock();
+        try {
+            String key = folder.equalsIgnoreCase("SENT") ?
+                    username.toLowerCase() + "_sent" :
+                    username.toLowerCase();
+
+            Mailbox mailbox = mailbox(key);
+            return mailbox != null ? mailbox.entries() : Collections.emptyList();
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
 
-            sendCounts.merge(from, 1, Integer::sum);
+    // LIST lines as the cached UTF-8 bytes, ready to be written to a socket
+    public List<byte[]> listMessages(String username, String folder) {
+        residency.readLock().lock();
+        try {
+            Collection<MailboxEntry> messages = getMessagesForUser(username, folder);
+            List<byte[]> result = new ArrayList<>();
 
-            saveMessages();
+            for (MailboxEntry msg : messages) {
+                if (inFolder(msg, folder)) {
+                    result.add(msg.getContent().getListLine());
+                }
+            }
 
-            System.out.println("📤 Message saved: " + messageId + " from " + from + " to " + recipients);
-            return messageId;
+            listCounts.merge(username, 1, Integer::sum);
 
-        } catch (Exception e) {
-            System.err.println("❌ Error saving message: " + e.getMessage());
-            return null;
+            System.out.println("📋 LIST " + folder + " for " + username + " - " + result.size() + " messages");
+            return result;
+        } finally {
+            residency.readLock().unlock();
         }
     }
 
-    public List<Message> getMessagesForUser(String username, String folder) {
-        String key = folder.equalsIgnoreCase("SENT") ?
-                username.toLowerCase() + "_sent" :
-                username.toLowerCase();
+    // nextCursor is null on the last page
+    public record ListPage(List<byte[]> lines, String nextCursor) { }
 
-        List<Message> messages = userMessages.getOrDefault(key, new ArrayList<>());
+    // One page of a folder, starting after the cursor returned with the previous
+    // page (or at the newest message when cursor is null). Walks only as far into
+    // the mailbox's ordered index as it takes to fill the page.
+    public ListPage listMessages(String username, String folder, int limit, String cursor) {
+        residency.readLock().lock();
+        try {
+            String key = folder.equalsIgnoreCase("SENT") ?
+                    username.toLowerCase() + "_sent" :
+                    username.toLowerCase();
+            Mailbox mailbox = mailbox(key);
+
+            List<byte[]> lines = new ArrayList<>();
+            String nextCursor = null;
+            if (mailbox != null) {
+                Collection<MailboxEntry> messages = cursor == null
+                        ? mailbox.entries()
+                        : mailbox.entriesAfter(parseCursor(cursor));
+                MailboxEntry last = null;
+                for (MailboxEntry msg : messages) {
+                    if (!inFolder(msg, folder)) continue;
+                    if (lines.size() == limit) {
+                        nextCursor = formatCursor(last);
+                        break;
+                    }
+                    lines.add(msg.getContent().getListLine());
+                    last = msg;
+                }
+            }
 
-        List<Message> sortedMessages = new ArrayList<>(messages);
-        sortedMessages.sort((m1, m2) -> Long.compare(m2.getTimestamp(), m1.getTimestamp()));
+            listCounts.merge(username, 1, Integer::sum);
 
-        return sortedMessages;
+            System.out.println("📋 LIST " + folder + " for " + username + " - page of " + lines.size() +
+                    (nextCursor != null ? " (more)" : ""));
+            return new ListPage(lines, nextCursor);
+        } finally {
+            residency.readLock().unlock();
+        }
     }
 
-    public List<String> listMessages(String username, String folder) {
-        List<Message> messages = getMessagesForUser(username, folder);
-        List<String> result = new ArrayList<>();
+    // lines are "<flags> <list line>" for added or changed entries; flags is a
+    // comma list of READ/ARCHIVED or "-"
+    public record ChangeSet(List<String> changed, List<String> expunged, long modSeq) { }
 
-        for (Message msg : messages) {
-            boolean include = true;
+    // What changed in the folder's mailbox after modSeq, or null when the mailbox
+    // no longer remembers expunges that far back and the client must LIST again.
+    // Folder only picks the inbox or the sent mailbox: an entry that left the
+    // folder (say, archived out of INBOX) is still reported with its new flags.
+    public ChangeSet listChanges(String username, String folder, long modSeq) {
+        residency.readLock().lock();
+        try {
+            String key = folder.equalsIgnoreCase("SENT") ?
+                    username.toLowerCase() + "_sent" :
+                    username.toLowerCase();
+            Mailbox mailbox = mailbox(key);
+            listCounts.merge(username, 1, Integer::sum);
+            if (mailbox == null) return new ChangeSet(List.of(), List.of(), 0);
+
+            Mailbox.Changes changes = mailbox.changesSince(modSeq);
+            if (changes == null) return null;
+
+            List<String> changed = new ArrayList<>(changes.changed().size());
+            for (MailboxEntry msg : changes.changed()) {
+                String flags = msg.isRead() && msg.isArchived() ? "READ,ARCHIVED"
+                        : msg.isRead() ? "READ"
+                        : msg.isArchived() ? "ARCHIVED"
+                        : "-";
+                changed.add(flags + " " + formatListLine(msg));
+            }
 
-            if ("ARCHIVE".equalsIgnoreCase(folder)) {
-                if (!msg.isArchived()) include = false;
-            } else {
-                if (msg.isArchived()) include = false;
+            List<String> expunged = new ArrayList<>(changes.expunged().size());
+            for (long id : changes.expunged()) {
+                expunged.add(MessageIds.format(id));
             }
 
-            if ("UNREAD".equalsIgnoreCase(folder) && msg.isRead()) {
-                include = false;
+            System.out.println("📋 LIST " + folder + " CHANGEDSINCE " + modSeq + " for " + username + " - " +
+                    changed.size() + " changed, " + expunged.size() + " expunged");
+            return new ChangeSet(changed, expunged, changes.modSeq());
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    // Messages in the folder containing every term of the query, best match first
+    // (or newest first when byDate), at most Config.SEARCH_MAX_RESULTS of them.
+    public List<String> searchMessages(String username, String folder, String query, boolean byDate) {
+        residency.readLock().lock();
+        try {
+            String key = folder.equalsIgnoreCase("SENT") ?
+                    username.toLowerCase() + "_sent" :
+                    username.toLowerCase();
+            SearchIndex index = mailbox(key) != null ? searchIndexes.get(key) : null;
+            Set<String> terms = SearchIndex.tokenize(query).keySet();
+
+            List<MailboxEntry> found = new ArrayList<>();
+            Map<MailboxEntry, Double> scores = new HashMap<>();
+            if (index != null && !terms.isEmpty()) {
+                for (SearchIndex.Hit hit : index.search(terms)) {
+                    MailboxEntry msg = findEntry(key, hit.messageId());
+                    if (msg == null || !inFolder(msg, folder)) continue;
+                    found.add(msg);
+                    scores.put(msg, hit.score());
+                }
             }
 
-            if (include) {
-                String line = String.format("%s %s %d %d %s",
-                        msg.getMessageId(),
-                        msg.getFrom(),
-                        msg.getBody().length(),
-                        msg.getTimestamp(),
-                        msg.getSubject());
-                result.add(line);
+            Comparator<MailboxEntry> newestFirst = Comparator.comparingLong(MailboxEntry::getTimestamp).reversed();
+            found.sort(byDate ? newestFirst
+                    : Comparator.<MailboxEntry>comparingDouble(scores::get).reversed().thenComparing(newestFirst));
+
+            List<String> result = new ArrayList<>();
+            for (MailboxEntry msg : found.subList(0, Math.min(found.size(), Config.SEARCH_MAX_RESULTS))) {
+                result.add(formatListLine(msg));
             }
+
+            System.out.println("🔎 SEARCH " + folder + " \"" + query + "\" for " + username + " - " +
+                    found.size() + " matches");
+            return result;
+        } finally {
+            residency.readLock().unlock();
         }
+    }
 
-        listCounts.merge(username, 1, Integer::sum);
+    private static String formatCursor(MailboxEntry msg) {
+        return msg.getTimestamp() + ":" + msg.getMessageId();
+    }
 
-        System.out.println("📋 LIST " + folder + " for " + username + " - " + result.size() + " messages");
-        return result;
+    private static Mailbox.Position parseCursor(String cursor) {
+        int split = cursor.indexOf(':');
+        if (split <= 0 || split == cursor.length() - 1) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return new Mailbox.Position(Long.parseLong(cursor.substring(0, split)),
+                MessageIds.parse(cursor.substring(split + 1)));
     }
 
-    public String getMessage(String messageId, String username) {
-        for (List<Message> list : userMessages.values()) {
-            for (Message msg : list) {
-                if (msg.getMessageId().equals(messageId)) {
-                    boolean canAccess = msg.getFrom().equals(username) ||
-                            msg.getToList().contains(username);
+    // IDs arrive as text from clients; one that does not parse matches nothing.
+    private static long parseId(String messageId) {
+        try {
+            return MessageIds.parse(messageId);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
 
-                    if (canAccess) {
-                        if (msg.getToList().contains(username) && !msg.getFrom().equals(username)) {
-                            msg.setRead(true);
-                            saveMessages();
-                        }
+    private static boolean inFolder(MailboxEntry msg, String folder) {
+        if ("ARCHIVE".equalsIgnoreCase(folder)) {
+            if (!msg.isArchived()) return false;
+        } else {
+            if (msg.isArchived()) return false;
+        }
 
-                        retrCounts.merge(username, 1, Integer::sum);
-
-                        return String.format(
-                                "214 FROM:%s\n214 TO:%s\n214 SUBJ:%s\n214 TIMESTAMP:%d\n214 BODYLEN:%d\n214 BODY\n%s",
-                                msg.getFrom(),
-                                msg.getToAsString(),
-                                msg.getSubject(),
-                                msg.getTimestamp(),
-                                msg.getBody().length(),
-                                msg.getBody()
-                        );
-                    }
+        return !("UNREAD".equalsIgnoreCase(folder) && msg.isRead());
+    }
+
+    private static String formatListLine(MailboxEntry msg) {
+        return new String(msg.getContent().getListLine(), StandardCharsets.UTF_8);
+    }
+
+    // folder is one of the LIST folders, or MAILBOX for everything in the inbox
+    // (archived too) and sent mailboxes; since and before are epoch millis, the
+    // latter exclusive.
+    public record ExportRequest(String username, String folder, MailboxExporter.Format format,
+                                long since, long before) { }
+
+    // Exports to out on the export pool and completes with the message count;
+    // null when the pool and its queue are full.
+    public Future<Integer> exportMessages(ExportRequest request, OutputStream out) {
+        try {
+            return exportPool.submit(() -> export(request, out));
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    // Exports to a new file under data/exports in the background and returns
+    // it straight away; null when the pool and its queue are full.
+    public File exportToFile(ExportRequest request) {
+        File dir = new File(EXPORT_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File file = new File(dir, URLEncoder.encode(request.username().toLowerCase(), StandardCharsets.UTF_8) +
+                "-" + System.currentTimeMillis() + (request.format() == MailboxExporter.Format.ZIP ? ".zip" : ".mbox"));
+
+        try {
+            exportPool.execute(() -> {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+                    int count = export(request, out);
+                    System.out.println("💾 Exported " + count + " messages for " + request.username() + " to " + file);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("❌ Export to " + file + " failed: " + e.getMessage());
+                    file.delete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return file;
+    }
+
+    // Walks the mailboxes newest first, starting at the end of the date range,
+    // under the residency lock, and only picks the messages out. Their contents
+    // are retained, so a removal or eviction meanwhile cannot drop a body or a
+    // cold header block, and the writing to a possibly slow client runs without
+    // the lock.
+    private int export(ExportRequest request, OutputStream out) throws IOException {
+        record Exported(String folder, MailboxEntry msg) { }
+        List<Exported> selected = new ArrayList<>();
+
+        residency.readLock().lock();
+        try {
+            String userKey = request.username().toLowerCase();
+            String folder = request.folder();
+            boolean everything = "MAILBOX".equals(folder);
+            List<String> keys = everything ? List.of(userKey, userKey + "_sent")
+                    : List.of("SENT".equals(folder) ? userKey + "_sent" : userKey);
+
+            for (String key : keys) {
+                Mailbox mailbox = mailbox(key);
+                if (mailbox == null) continue;
+                String name = key.endsWith("_sent") ? "sent" : "inbox";
+                Collection<MailboxEntry> messages = request.before() == Long.MAX_VALUE
+                        ? mailbox.entries()
+                        : mailbox.entriesAfter(new Mailbox.Position(request.before(), -1));
+                for (MailboxEntry msg : messages) {
+                    if (msg.getTimestamp() < request.since()) break;
+                    if (!everything && !inFolder(msg, folder)) continue;
+                    retainContent(msg.getContent());
+                    selected.add(new Exported(name, msg));
                 }
             }
+        } finally {
+            residency.readLock().unlock();
+        }
+
+        try {
+            MailboxExporter writer = new MailboxExporter(request.format(), out, bodyStore);
+            for (Exported exported : selected) {
+                if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("export cancelled");
+                writer.write(exported.folder(), exported.msg());
+            }
+            writer.finish();
+            return selected.size();
+        } finally {
+            for (Exported exported : selected) {
+                releaseContent(exported.msg().getContent());
+            }
+        }
+    }
+
+    // The copy of a message the user may read, or null. Looking it up changes
+    // nothing; markRetrieved does that once the message has been sent.
+    public MailboxEntry retrieveMessage(String messageId, String username) {
+        residency.readLock().lock();
+        try {
+            Map.Entry<String, MailboxEntry> entry = findAccessibleCopy(parseId(messageId), username);
+            return entry != null ? entry.getValue() : null;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    // A retrieved message in the user's own inbox is marked read, unless they sent it themselves.
+    public void markRetrieved(String messageId, String username) {
+        residency.readLock().lock();
+        try {
+            long id = parseId(messageId);
+            Map.Entry<String, MailboxEntry> entry = findAccessibleCopy(id, username);
+            if (entry == null) return;
+
+            MailboxEntry msg = entry.getValue();
+            if (entry.getKey().equals(username.toLowerCase()) && !msg.getFrom().equals(username)) {
+                try {
+                    commitMutations(mailbox(entry.getKey()).markRead(msg,
+                            modSeq -> appendMutation(MailboxLog.OP_READ, entry.getKey(), id, modSeq)));
+                } catch (UncheckedIOException e) {
+                    System.err.println("❌ Could not mark " + messageId + " as read: " + e.getCause().getMessage());
+                }
+            }
+
+            retrCounts.merge(username, 1, Integer::sum);
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    public boolean hasBody(MailboxEntry msg) {
+        return bodyStore.contains(msg.getContent().getBodyRef());
+    }
+
+    // Streams the body from its segment as the body lines of a RETR reply: the
+    // stored UTF-8 bytes, then a line break unless the body already ends in one.
+    public void writeBody(MailboxEntry msg, OutputStream out) throws IOException {
+        int last = bodyStore.writeTo(msg.getContent().getBodyRef(), out);
+        if (last >= 0 && last != '\n') {
+            out.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+
+    private Map.Entry<String, MailboxEntry> findAccessibleCopy(long messageId, String username) {
+        String userKey = username.toLowerCase();
+        mailbox(userKey);
+        mailbox(userKey + "_sent");
+        Map<String, MailboxEntry> copies = messageIndex.get(messageId);
+        if (copies == null) return null;
+
+        for (String key : new String[]{userKey, userKey + "_sent"}) {
+            MailboxEntry own = copies.get(key);
+            if (own != null) return Map.entry(key, own);
+        }
+
+        for (Map.Entry<String, MailboxEntry> entry : copies.entrySet()) {
+            MailboxEntry msg = entry.getValue();
+            if (msg.getFrom().equals(username) || msg.getToList().contains(username)) {
+                return entry;
+            }
         }
         return null;
     }
 
+    // DELE/RESTORE/MARK throw UncheckedIOException when the change cannot be
+    // logged; the mailbox has undone it by then.
     public boolean archiveMessage(String messageId, String username) {
         return updateMessageArchiveStatus(messageId, username, true);
     }
@@ -145,92 +573,360 @@ public class MessageManager {
     }
 
     public boolean markAsRead(String messageId, String username) {
-        for (List<Message> list : userMessages.values()) {
-            for (Message msg : list) {
-                if (msg.getMessageId().equals(messageId) &&
-                        msg.getToList().contains(username)) {
-                    msg.setRead(true);
-                    saveMessages();
-                    System.out.println("📌 Marked as read: " + messageId);
-                    return true;
+        residency.readLock().lock();
+        try {
+            String userKey = username.toLowerCase();
+            long id = parseId(messageId);
+            Mailbox inbox = mailbox(userKey);
+            MailboxEntry msg = findEntry(userKey, id);
+            if (msg == null) return false;
+
+            commitMutations(inbox.markRead(msg,
+                    modSeq -> appendMutation(MailboxLog.OP_READ, userKey, id, modSeq)));
+            System.out.println("📌 Marked as read: " + messageId);
+            return true;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    private boolean updateMessageArchiveStatus(String messageId, String username, boolean archive) {
+        residency.readLock().lock();
+        try {
+            boolean found = false;
+            String userKey = username.toLowerCase();
+            String[] folders = {userKey, userKey + "_sent"};
+            long id = parseId(messageId);
+
+            for (String folder : folders) {
+                Mailbox mailbox = mailbox(folder);
+                MailboxEntry msg = findEntry(folder, id);
+                if (msg != null) {
+                    found = true;
+                    byte op = archive ? MailboxLog.OP_ARCHIVE : MailboxLog.OP_RESTORE;
+                    commitMutations(mailbox.setArchived(msg, archive,
+                            modSeq -> appendMutation(op, folder, id, modSeq)));
+                    if (!archive) warmContent(msg.getContent());
+                    System.out.println((archive ? "🗑️ Archived" : "🔄 Restored") +
+                            ": " + messageId);
                 }
             }
+
+            return found;
+        } finally {
+            residency.readLock().unlock();
         }
-        return false;
     }
 
-    private boolean updateMessageArchiveStatus(String messageId, String username, boolean archive) {
-        boolean found = false;
-        String userKey = username.toLowerCase();
+    // Bulk forms of DELE/RESTORE/MARK: every change to one mailbox is applied
+    // under a single lock and logged with a single durable write. The result maps
+    // each requested ID to whether the user has that message, in request order.
+    // A change that cannot be logged throws as for a single message; what the
+    // other folder already logged is still committed first.
+    public Map<String, Boolean> archiveMessages(List<String> messageIds, String username) {
+        return updateArchiveStatus(messageIds, username, true);
+    }
+
+    public Map<String, Boolean> restoreMessages(List<String> messageIds, String username) {
+        return updateArchiveStatus(messageIds, username, false);
+    }
+
+    public Map<String, Boolean> markAsRead(List<String> messageIds, String username) {
+        residency.readLock().lock();
+        try {
+            String userKey = username.toLowerCase();
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            Mailbox inbox = mailbox(userKey);
+            List<MailboxEntry> batch = collectEntries(userKey, messageIds, results);
+
+            if (!batch.isEmpty()) {
+                commitMutations(inbox.markRead(batch,
+                        changes -> appendMutations(MailboxLog.OP_READ, userKey, changes)));
+            }
+            System.out.println("📌 Marked " + batch.size() + " of " + results.size() + " messages as read");
+            return results;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
 
-        String[] folders = {userKey, userKey + "_sent"};
-
-        for (String folder : folders) {
-            List<Message> messages = userMessages.get(folder);
-            if (messages != null) {
-                for (Message msg : messages) {
-                    if (msg.getMessageId().equals(messageId)) {
-                        msg.setArchived(archive);
-                        found = true;
-                        System.out.println((archive ? "🗑️ Archived" : "🔄 Restored") +
-                                ": " + messageId);
+    private Map<String, Boolean> updateArchiveStatus(List<String> messageIds, String username, boolean archive) {
+        residency.readLock().lock();
+        try {
+            String userKey = username.toLowerCase();
+            byte op = archive ? MailboxLog.OP_ARCHIVE : MailboxLog.OP_RESTORE;
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            long seq = Mailbox.UNCHANGED;
+            int found = 0;
+            UncheckedIOException failure = null;
+
+            for (String folder : new String[]{userKey, userKey + "_sent"}) {
+                Mailbox mailbox = mailbox(folder);
+                List<MailboxEntry> batch = collectEntries(folder, messageIds, results);
+                if (batch.isEmpty()) continue;
+                try {
+                    seq = Math.max(seq, mailbox.setArchived(batch, archive,
+                            changes -> appendMutations(op, folder, changes)));
+                } catch (UncheckedIOException e) {
+                    failure = e;
+                    break;
+                }
+                found += batch.size();
+                if (!archive) {
+                    for (MailboxEntry msg : batch) {
+                        warmContent(msg.getContent());
                     }
                 }
             }
+            commitMutations(seq);
+            if (failure != null) throw failure;
+
+            System.out.println((archive ? "🗑️ Archived " : "🔄 Restored ") + found + " entries for " +
+                    results.size() + " requested messages");
+            return results;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    // Entries of the mailbox for the given IDs; marks the ones found in results
+    // without clearing what an earlier mailbox found.
+    private List<MailboxEntry> collectEntries(String mailboxKey, List<String> messageIds,
+                                              Map<String, Boolean> results) {
+        List<MailboxEntry> batch = new ArrayList<>();
+        for (String messageId : messageIds) {
+            MailboxEntry msg = findEntry(mailboxKey, parseId(messageId));
+            if (msg != null) batch.add(msg);
+            results.merge(messageId, msg != null, Boolean::logicalOr);
         }
+        return batch;
+    }
 
-        if (found) {
-            saveMessages();
+    // IDs of every message in a folder, newest first, for "ALL <folder>".
+    public List<String> folderMessageIds(String username, String folder) {
+        residency.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            for (MailboxEntry msg : getMessagesForUser(username, folder)) {
+                if (inFolder(msg, folder)) result.add(msg.getMessageId());
+            }
+            return result;
+        } finally {
+            residency.readLock().unlock();
         }
+    }
+
+    // IDs of the user's messages (inbox and sent) between two IDs inclusive,
+    // oldest first. IDs are time-ordered, so this is a span of time. Throws
+    // IllegalArgumentException if either end is not an ID.
+    public List<String> rangeMessageIds(String username, String first, String last) {
+        residency.readLock().lock();
+        try {
+            long from = MessageIds.parse(first);
+            long to = MessageIds.parse(last);
+            if (from > to) {
+                long swap = from;
+                from = to;
+                to = swap;
+            }
+
+            TreeSet<Long> ids = new TreeSet<>();
+            String userKey = username.toLowerCase();
+            for (String key : new String[]{userKey, userKey + "_sent"}) {
+                Mailbox mailbox = mailbox(key);
+                if (mailbox == null) continue;
+                for (MailboxEntry msg : mailbox) {
+                    if (msg.getId() >= from && msg.getId() <= to) ids.add(msg.getId());
+                }
+            }
 
-        return found;
+            List<String> result = new ArrayList<>(ids.size());
+            for (long id : ids) {
+                result.add(MessageIds.format(id));
+            }
+            return result;
+        } finally {
+            residency.readLock().unlock();
+        }
     }
 
+    // Answered from what is kept of an evicted inbox, so telling an offline
+    // user about new mail does not load their mailbox.
     public int getUnreadCount(String username) {
-        List<Message> inbox = userMessages.getOrDefault(username.toLowerCase(), new ArrayList<>());
-        return (int) inbox.stream()
-                .filter(m -> !m.isRead() && !m.isArchived())
-                .count();
+        residency.readLock().lock();
+        try {
+            EvictedMailbox stub = evicted.get(username.toLowerCase());
+            if (stub != null) {
+                synchronized (stub) {
+                    if (!stub.reloaded) return stub.unread;
+                }
+            }
+            Mailbox inbox = mailbox(username.toLowerCase());
+            return inbox != null ? inbox.getUnreadCount() : 0;
+        } finally {
+            residency.readLock().unlock();
+        }
     }
 
     public int getStorageUsed(String username) {
-        int total = 0;
-        String userKey = username.toLowerCase();
+        residency.readLock().lock();
+        try {
+            long total = 0;
+            String userKey = username.toLowerCase();
 
-        List<Message> inbox = userMessages.getOrDefault(userKey, new ArrayList<>());
-        for (Message msg : inbox) {
-            total += msg.getBody().length();
-        }
+            for (String key : new String[]{userKey, userKey + "_sent"}) {
+                Mailbox mailbox = mailbox(key);
+                if (mailbox != null) total += mailbox.getBytesUsed();
+            }
 
-        List<Message> sent = userMessages.getOrDefault(userKey + "_sent", new ArrayList<>());
-        for (Message msg : sent) {
-            total += msg.getBody().length();
+            return (int) Math.min(total, Integer.MAX_VALUE);
+        } finally {
+            residency.readLock().unlock();
         }
+    }
+
+    // Bytes actually on disk for this user's bodies: after compression, and
+    // counting a body shared by several messages of a folder only once. Each
+    // folder keeps its own tally, so this is two counter reads.
+    public int getPhysicalStorageUsed(String username) {
+        residency.readLock().lock();
+        try {
+            long total = 0;
+            String userKey = username.toLowerCase();
 
-        return total;
+            for (String key : new String[]{userKey, userKey + "_sent"}) {
+                Mailbox mailbox = mailbox(key);
+                if (mailbox != null) total += mailbox.getPhysicalBytes();
+            }
+
+            return (int) Math.min(total, Integer.MAX_VALUE);
+        } finally {
+            residency.readLock().unlock();
+        }
     }
 
     public int cleanupOldMessages(int days) {
-        long cutoff = System.currentTimeMillis() - (days * 24L * 60 * 60 * 1000);
-        int removed = 0;
+        residency.readLock().lock();
+        try {
+            long cutoff = System.currentTimeMillis() - (days * 24L * 60 * 60 * 1000);
+            int removed = 0;
+            int freed = 0;
+            long lastSeq = 0;
+
+            // evicted mailboxes first: one reloaded meanwhile is resident by the
+            // time the loop below runs
+            for (Map.Entry<String, EvictedMailbox> entry : evicted.entrySet()) {
+                EvictedMailbox stub = entry.getValue();
+                synchronized (stub) {
+                    if (stub.reloaded || stub.oldestArchived >= cutoff) continue;
+                    for (long seq : cleanupEvicted(entry.getKey(), stub, cutoff)) {
+                        lastSeq = Math.max(lastSeq, seq);
+                        removed++;
+                    }
+                }
+            }
 
-        for (List<Message> messages : userMessages.values()) {
-            Iterator<Message> iterator = messages.iterator();
-            while (iterator.hasNext()) {
-                Message msg = iterator.next();
-                if (msg.isArchived() && msg.getTimestamp() < cutoff) {
-                    iterator.remove();
-                    removed++;
+            for (Mailbox mailbox : userMessages.values()) {
+                for (MailboxEntry msg : mailbox) {
+                    if (msg.getTimestamp() >= cutoff) continue;
+
+                    long seq;
+                    try {
+                        seq = mailbox.removeIf(msg, MailboxEntry::isArchived,
+                                modSeq -> appendMutation(MailboxLog.OP_REMOVE, mailbox.getKey(), msg.getId(), modSeq));
+                    } catch (UncheckedIOException e) {
+                        System.err.println("❌ Failed to journal " + MessageIds.format(msg.getId()) + ": " +
+                                e.getCause().getMessage());
+                        continue;
+                    }
+                    if (seq != Mailbox.UNCHANGED) {
+                        unindexEntry(mailbox.getKey(), msg);
+                        searchIndex(mailbox.getKey()).remove(msg.getId());
+                        lastSeq = Math.max(lastSeq, seq);
+                        removed++;
+                        if (releaseContent(msg.getContent())) freed++;
+                    }
                 }
             }
+
+            if (removed > 0) {
+                try {
+                    commitMutations(lastSeq);
+                } catch (UncheckedIOException e) {
+                    System.err.println("❌ Failed to commit mailbox changes: " + e.getCause().getMessage());
+                }
+                bodyStore.dropEmptySegments();
+                System.out.println("🧹 Cleaned " + removed + " old archived messages (older than " + days +
+                        " days), freed " + freed + " message payloads");
+            }
+
+            return removed;
+        } finally {
+            residency.readLock().unlock();
         }
+    }
 
-        if (removed > 0) {
-            saveMessages();
-            System.out.println("🧹 Cleaned " + removed + " old archived messages (older than " + days + " days)");
+    // Retention for a mailbox that is not in memory: its file is read for the
+    // archived entries older than cutoff, and their removals are appended to it
+    // with the modseqs the mailbox would have given them. Returns the store
+    // sequence of each removal. Callers hold the stub's monitor.
+    private List<Long> cleanupEvicted(String key, EvictedMailbox stub, long cutoff) {
+        Map<Long, MessageContent> saved = new HashMap<>();
+        Set<Long> archived = new HashSet<>();
+        try {
+            store.replay(key, record -> {
+                long messageId = record.messageId();
+                switch (record.op()) {
+                    case MailboxLog.OP_SAVE -> {
+                        if (saved.putIfAbsent(messageId, record.content()) == null && record.archived()) {
+                            archived.add(messageId);
+                        }
+                    }
+                    case MailboxLog.OP_ARCHIVE -> {
+                        if (saved.containsKey(messageId)) archived.add(messageId);
+                    }
+                    case MailboxLog.OP_RESTORE -> archived.remove(messageId);
+                    case MailboxLog.OP_REMOVE -> {
+                        saved.remove(messageId);
+                        archived.remove(messageId);
+                    }
+                    default -> { }
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("❌ Failed to read mailbox " + key + " for cleanup: " + e.getMessage());
+            return List.of();
+        } finally {
+            // the next eviction round closes the file again
+            stub.open = true;
         }
 
-        return removed;
+        List<Long> seqs = new ArrayList<>();
+        long oldestKept = Long.MAX_VALUE;
+        for (long messageId : archived) {
+            MessageContent content = saved.get(messageId);
+            if (content.getTimestamp() >= cutoff) {
+                oldestKept = Math.min(oldestKept, content.getTimestamp());
+                continue;
+            }
+
+            long seq;
+            try {
+                seq = store.appendFlag(key, MailboxLog.OP_REMOVE, messageId, stub.modSeq + 1);
+            } catch (IOException e) {
+                System.err.println("❌ Failed to journal " + MessageIds.format(messageId) + ": " + e.getMessage());
+                oldestKept = Math.min(oldestKept, content.getTimestamp());
+                continue;
+            }
+            stub.modSeq++;
+            stub.records++;
+            if (stub.pinned.remove(content.getBodyRef())) {
+                bodyStore.release(content.getBodyRef());
+            }
+            seqs.add(seq);
+        }
+        stub.oldestArchived = oldestKept;
+        return seqs;
     }
 
     public Map<String, Integer> getSendSummaries() {
@@ -245,41 +941,44 @@ public class MessageManager {
         return new HashMap<>(retrCounts);
     }
 
-    @SuppressWarnings("unchecked")
     private void loadMessages() {
-        File file = new File(MESSAGES_FILE);
-        File parentDir = file.getParentFile();
+        File legacy = new File(LEGACY_FILE);
+        List<String> mailboxKeys = store.existingKeys();
 
-        if (parentDir != null && !parentDir.exists()) {
-            parentDir.mkdirs();
-        }
-
-        if (!file.exists()) {
+        if (mailboxKeys.isEmpty() && !legacy.exists()) {
             System.out.println("📝 No existing messages file - creating fresh database");
             createSampleData();
             return;
         }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-            Map<String, List<Message>> loaded = (Map<String, List<Message>>) ois.readObject();
+        try {
             userMessages.clear();
-            userMessages.putAll(loaded);
-
-            long maxId = userMessages.values().stream()
-                    .flatMap(List::stream)
-                    .mapToLong(msg -> {
-                        try {
-                            String[] parts = msg.getMessageId().split("_");
-                            if (parts.length >= 3) {
-                                return Long.parseLong(parts[2]);
-                            }
-                        } catch (Exception e) { }
-                        return 0L;
-                    })
-                    .max()
-                    .orElse(0L);
-
-            nextId.set(maxId + 1);
+            messageIndex.clear();
+
+            if (!mailboxKeys.isEmpty()) {
+                for (String key : mailboxKeys) {
+                    loadMailbox(key);
+                }
+            } else {
+                migrateLegacyFile(legacy);
+            }
+
+            int dropped = bodyStore.dropEmptySegments();
+            if (dropped > 0) {
+                System.out.println("🧹 Dropped " + dropped + " unreferenced body segments");
+            }
+
+            loadSearchIndexes();
+
+            // new IDs must sort after every ID still in use, even if the clock stepped back
+            for (Mailbox mailbox : userMessages.values()) {
+                for (MailboxEntry msg : mailbox) {
+                    ids.observe(msg.getId());
+                }
+                for (long id : mailbox.tombstones().values()) {
+                    ids.observe(id);
+                }
+            }
             System.out.println("✅ Loaded " + countAllMessages() + " messages for " +
                     userMessages.size() + " folders");
 
@@ -289,6 +988,241 @@ public class MessageManager {
         }
     }
 
+    // A mailbox that fails to load is logged and skipped; the others still come up.
+    private void loadMailbox(String key) {
+        try {
+            store.replay(key, record -> applyMailboxRecord(key, record));
+        } catch (IOException e) {
+            System.err.println("❌ Failed to load mailbox " + key + ": " + e.getMessage());
+        }
+    }
+
+    // The index files are a cache of what the mailboxes hold: anything they miss
+    // (messages saved after the last save, or a lost file) is indexed from the
+    // body store again, and anything that has since been removed is dropped.
+    private void loadSearchIndexes() {
+        Map<Long, Map<String, Integer>> tokenized = new HashMap<>();
+        int indexed = 0;
+
+        for (Mailbox mailbox : userMessages.values()) {
+            indexed += loadSearchIndex(mailbox, tokenized);
+        }
+
+        if (indexed > 0) {
+            System.out.println("🔎 Indexed " + indexed + " messages for search");
+            saveSearchIndexes();
+        }
+    }
+
+    // Returns how many of the mailbox's entries had to be indexed again;
+    // tokenized carries terms over between mailboxes holding the same message.
+    private int loadSearchIndex(Mailbox mailbox, Map<Long, Map<String, Integer>> tokenized) {
+        SearchIndex index = SearchIndex.load(indexFile(mailbox.getKey()));
+        int indexed = reconcileSearchIndex(mailbox, index, tokenized);
+        searchIndexes.put(mailbox.getKey(), index);
+        return indexed;
+    }
+
+    private int reconcileSearchIndex(Mailbox mailbox, SearchIndex index, Map<Long, Map<String, Integer>> tokenized) {
+        Set<Long> stale = index.messageIds();
+        int indexed = 0;
+        for (MailboxEntry msg : mailbox) {
+            stale.remove(msg.getId());
+            if (index.contains(msg.getId())) continue;
+
+            Map<String, Integer> terms = tokenized.get(msg.getId());
+            if (terms == null) {
+                try {
+                    terms = SearchIndex.tokenize(msg.getSubject(), msg.getFrom(),
+                            bodyStore.read(msg.getContent().getBodyRef()));
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to index " + msg.getMessageId() + ": " + e.getMessage());
+                    continue;
+                }
+                tokenized.put(msg.getId(), terms);
+            }
+            index.add(msg.getId(), terms);
+            indexed++;
+        }
+        for (long messageId : stale) {
+            index.remove(messageId);
+        }
+        return indexed;
+    }
+
+    // Imports the legacy messages/ directory, then renames it so it is not read
+    // again. IDs come from the file names, so an interrupted import can simply
+    // run again on the next start.
+    private void importLegacyMessages() {
+        File dir = new File(LEGACY_MESSAGES_DIR);
+        if (!dir.isDirectory()) return;
+
+        System.out.println("🔄 Importing legacy messages from " + dir);
+        try {
+            importMessages(List.of(dir));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("❌ Failed to import " + dir + ": " + e.getMessage());
+            return;
+        }
+        if (!dir.renameTo(new File(LEGACY_MESSAGES_DIR + ".imported"))) {
+            System.err.println("❌ Could not rename " + dir + " after import");
+        }
+    }
+
+    // Imports the files dropped into data/import and moves them to its done/
+    // subdirectory, or to failed/ if the import stopped partway, so they are
+    // not read twice. A file changed within the last Config.IMPORT_SETTLE_MILLIS
+    // may still be being copied in and waits for the next scan.
+    public int importDropped() {
+        File dir = new File(IMPORT_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        long settled = System.currentTimeMillis() - Config.IMPORT_SETTLE_MILLIS;
+        File[] files = dir.listFiles(file -> file.isFile() && MessageImporter.accepts(file.getName())
+                && file.lastModified() < settled);
+        if (files == null || files.length == 0) return 0;
+
+        Arrays.sort(files);
+        int imported = 0;
+        File target = new File(dir, "done");
+        try {
+            imported = importMessages(Arrays.asList(files));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("❌ Failed to import from " + dir + ": " + e.getMessage());
+            target = new File(dir, "failed");
+        }
+
+        target.mkdirs();
+        for (File file : files) {
+            if (!file.renameTo(new File(target, file.getName()))) {
+                System.err.println("❌ Could not move " + file + " to " + target);
+            }
+        }
+        return imported;
+    }
+
+    // Bulk import of legacy message files and mbox files (see MessageImporter).
+    // Batches of Config.IMPORT_BATCH are parsed on a fork-join pool while the
+    // previous batch is written; search terms are only worked out at the end,
+    // in parallel per mailbox. Each batch is committed before the next one is
+    // written, while the one after it parses. A message already in a mailbox
+    // (same ID) is not added to it twice, so an import that dies halfway can
+    // simply be run again.
+    public int importMessages(List<File> sources) throws IOException {
+        long started = System.currentTimeMillis();
+        Set<String> touched = new HashSet<>();
+        int imported = 0;
+
+        try (MessageImporter importer = new MessageImporter(sources)) {
+            ForkJoinTask<List<Message>> next = importer.parseNext(Config.IMPORT_BATCH);
+            while (next != null) {
+                List<Message> batch = next.join();
+                next = importer.parseNext(Config.IMPORT_BATCH);
+                ImportedBatch written = writeImported(batch, touched);
+                commitMutations(written.seq());
+                imported += written.count();
+            }
+
+            int indexed = indexImported(touched, importer);
+            System.out.println("📥 Imported " + imported + " messages into " + touched.size() + " mailboxes (" +
+                    importer.getFailedCount() + " unreadable, " + indexed + " entries indexed) in " +
+                    (System.currentTimeMillis() - started) + " ms");
+        }
+        return imported;
+    }
+
+    private record ImportedBatch(long seq, int count) {}
+
+    // Adds one parsed batch; returns the store sequence to commit and how many
+    // of its messages were new. The new entries of each mailbox go in with one
+    // lock and one log append, so FSYNC mode forces each file once per batch.
+    private ImportedBatch writeImported(List<Message> batch, Set<String> touched) throws IOException {
+        residency.readLock().lock();
+        List<MessageContent> contents = new ArrayList<>();
+        try {
+            Map<String, Map<Long, MailboxEntry>> pending = new LinkedHashMap<>();
+            for (Message msg : batch) {
+                long id = msg.getMessageId() != null ? MessageIds.parse(msg.getMessageId()) : ids.next();
+                ids.observe(id);
+
+                List<String> mailboxKeys = new ArrayList<>();
+                for (String to : msg.getToList()) {
+                    String userKey = to.toLowerCase();
+                    if (!mailboxKeys.contains(userKey)) mailboxKeys.add(userKey);
+                }
+                mailboxKeys.add(msg.getFrom().toLowerCase() + "_sent");
+
+                MessageContent content = null;
+                for (String key : mailboxKeys) {
+                    mailboxForWrite(key);
+                    Map<Long, MailboxEntry> entries = pending.computeIfAbsent(key, k -> new LinkedHashMap<>());
+                    if (findEntry(key, id) != null || entries.containsKey(id)) continue;
+                    if (content == null) {
+                        content = new MessageContent(id, msg.getFrom(), msg.getToList(), msg.getSubject(),
+                                bodyStore.append(msg.getBody()), msg.getBody().length(), msg.getTimestamp());
+                        contents.add(content);
+                    }
+                    // the flags in the file are the recipient's; the sent copy starts out like a new one
+                    entries.put(id, key.endsWith("_sent") ? new MailboxEntry(content)
+                            : new MailboxEntry(content, msg.isRead(), msg.isArchived()));
+                }
+            }
+
+            long seq = Mailbox.UNCHANGED;
+            for (Map.Entry<String, Map<Long, MailboxEntry>> entries : pending.entrySet()) {
+                if (entries.getValue().isEmpty()) continue;
+                seq = Math.max(seq, addEntries(entries.getKey(), new ArrayList<>(entries.getValue().values())));
+                touched.add(entries.getKey());
+            }
+            return new ImportedBatch(seq, contents.size());
+        } finally {
+            for (MessageContent content : contents) {
+                bodyStore.release(content.getBodyRef());
+            }
+            residency.readLock().unlock();
+        }
+    }
+
+    private int indexImported(Set<String> keys, MessageImporter importer) {
+        residency.readLock().lock();
+        try {
+            List<Mailbox> mailboxes = new ArrayList<>();
+            for (String key : keys) {
+                // an evicted mailbox is reconciled when it is loaded again
+                if (evicted.containsKey(key)) continue;
+                Mailbox mailbox = userMessages.get(key);
+                if (mailbox != null) mailboxes.add(mailbox);
+            }
+            int indexed = importer.getPool().submit(() -> mailboxes.parallelStream()
+                    .mapToInt(mailbox -> reconcileSearchIndex(mailbox, searchIndex(mailbox.getKey()), new HashMap<>()))
+                    .sum()).join();
+            saveSearchIndexes();
+            return indexed;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    private void saveSearchIndexes() {
+        for (Map.Entry<String, SearchIndex> entry : searchIndexes.entrySet()) {
+            if (!entry.getValue().isDirty()) continue;
+            try {
+                entry.getValue().save(indexFile(entry.getKey()));
+            } catch (IOException e) {
+                System.err.println("❌ Failed to save search index for " + entry.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private SearchIndex searchIndex(String mailboxKey) {
+        return searchIndexes.computeIfAbsent(mailboxKey, k -> new SearchIndex());
+    }
+
+    private static File indexFile(String mailboxKey) {
+        return new File(INDEX_DIR, URLEncoder.encode(mailboxKey, StandardCharsets.UTF_8) + ".idx");
+    }
+
     private void createSampleData() {
         System.out.println("📝 Creating sample messages...");
 
@@ -304,50 +1238,662 @@ public class MessageManager {
         System.out.println("✅ Sample messages created");
     }
 
+    // One-time move from the Java-serialized messages.dat to one file per
+    // mailbox. The old file is renamed afterwards so it is never read again.
+    @SuppressWarnings("unchecked")
+    private void migrateLegacyFile(File legacy) throws IOException, ClassNotFoundException {
+        System.out.println("🔄 Migrating messages to per-mailbox files in " + MAILBOX_DIR);
+
+        Map<String, List<Message>> messages;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(legacy)))) {
+            messages = (Map<String, List<Message>>) ois.readObject();
+        }
+        loadLegacyMessages(messages);
+
+        for (Mailbox mailbox : userMessages.values()) {
+            store.rewrite(mailbox);
+        }
+
+        if (!legacy.renameTo(new File(legacy.getPath() + ".migrated"))) {
+            System.err.println("❌ Could not rename " + legacy + " after migration");
+        }
+        System.out.println("✅ Migrated " + userMessages.size() + " mailboxes");
+    }
+
+    // Older messages.dat files hold one full Message per mailbox; collapse the
+    // copies of each ID onto one shared payload, keeping the widest recipient list.
+    private void loadLegacyMessages(Map<String, List<Message>> legacy) throws IOException {
+        Map<String, Message> widest = new HashMap<>();
+        for (List<Message> messages : legacy.values()) {
+            for (Message msg : messages) {
+                Message existing = widest.get(msg.getMessageId());
+                if (existing == null || msg.getToList().size() > existing.getToList().size()) {
+                    widest.put(msg.getMessageId(), msg);
+                }
+            }
+        }
+
+        Map<String, MessageContent> contents = new HashMap<>();
+        for (Message msg : widest.values()) {
+            String body = msg.getBody() != null ? msg.getBody() : "";
+            contents.put(msg.getMessageId(), new MessageContent(MessageIds.parse(msg.getMessageId()), msg.getFrom(),
+                    msg.getToList(), msg.getSubject(), bodyStore.append(body), body.length(), msg.getTimestamp()));
+        }
+
+        for (Map.Entry<String, List<Message>> entry : legacy.entrySet()) {
+            for (Message msg : entry.getValue()) {
+                addEntry(entry.getKey(), new MailboxEntry(contents.get(msg.getMessageId()),
+                        msg.isRead(), msg.isArchived()));
+            }
+        }
+        for (MessageContent content : contents.values()) {
+            bodyStore.release(content.getBodyRef());
+        }
+    }
+
+    // A mailbox rewrite can race with the appends it already reflects, so the
+    // same record may be seen twice and every op must be idempotent.
+    private void applyMailboxRecord(String key, MailboxLog.LogRecord record) {
+        switch (record.op()) {
+            case MailboxLog.OP_META -> userMessages.computeIfAbsent(key, Mailbox::new)
+                    .restoreModSeq(record.modSeq(), record.expungedFloor());
+            case MailboxLog.OP_SAVE -> {
+                if (findEntry(key, record.messageId()) == null) {
+                    addEntry(key, new MailboxEntry(sharedContent(record.content()),
+                            record.read(), record.archived()), record.modSeq());
+                } else {
+                    userMessages.get(key).restoreModSeq(record.modSeq(), 0);
+                }
+            }
+            default -> applyMutation(record.op(), key, record.messageId(), record.modSeq());
+        }
+    }
+
+    // A flag change or removal read back from a mailbox log, with the modseq
+    // it was logged with.
+    private void applyMutation(byte op, String key, long messageId, long modSeq) {
+        MailboxEntry msg = findEntry(key, messageId);
+        if (msg == null) {
+            if (op == MailboxLog.OP_REMOVE && modSeq > 0) {
+                userMessages.computeIfAbsent(key, Mailbox::new).noteExpunged(messageId, modSeq);
+            }
+            return;
+        }
+
+        Mailbox mailbox = userMessages.get(key);
+        switch (op) {
+            case MailboxLog.OP_READ -> mailbox.markRead(msg, modSeq);
+            case MailboxLog.OP_ARCHIVE -> mailbox.setArchived(msg, true, modSeq);
+            case MailboxLog.OP_RESTORE -> mailbox.setArchived(msg, false, modSeq);
+            case MailboxLog.OP_REMOVE -> {
+                mailbox.remove(msg, modSeq);
+                unindexEntry(key, msg);
+                releaseContent(msg.getContent());
+            }
+            default -> System.out.println("⚠️ Unknown mailbox op: " + op);
+        }
+        mailbox.restoreModSeq(modSeq, 0);
+    }
+
+    // Copies of one message loaded from different files share the first instance seen.
+    private MessageContent sharedContent(MessageContent loaded) {
+        Map<String, MailboxEntry> copies = messageIndex.get(loaded.getId());
+        if (copies == null || copies.isEmpty()) return loaded;
+        return copies.values().iterator().next().getContent();
+    }
+
+    private void addEntry(String mailboxKey, MailboxEntry msg) {
+        addEntry(mailboxKey, msg, 0);
+    }
+
+    private void addEntry(String mailboxKey, MailboxEntry msg, long modSeq) {
+        retainContent(msg.getContent());
+        userMessages.computeIfAbsent(mailboxKey, Mailbox::new).add(msg, modSeq);
+        indexEntry(mailboxKey, msg);
+    }
+
+    // If persist throws, the mailbox has already rolled the entry back.
+    private long addEntry(String mailboxKey, MailboxEntry msg, LongUnaryOperator persist) {
+        retainContent(msg.getContent());
+        long seq;
+        try {
+            seq = mailboxForWrite(mailboxKey).add(msg, persist);
+        } catch (RuntimeException e) {
+            releaseContent(msg.getContent());
+            throw e;
+        }
+        indexEntry(mailboxKey, msg);
+        return seq;
+    }
+
+    // Batch form of addEntry; entries already in the mailbox are left out.
+    private long addEntries(String mailboxKey, List<MailboxEntry> batch) {
+        for (MailboxEntry msg : batch) {
+            retainContent(msg.getContent());
+        }
+        Set<MailboxEntry> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        long seq;
+        try {
+            seq = mailboxForWrite(mailboxKey).add(batch, changes -> {
+                for (Mailbox.Change change : changes) {
+                    added.add(change.entry());
+                }
+                try {
+                    return store.appendEntries(mailboxKey, changes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            for (MailboxEntry msg : batch) {
+                releaseContent(msg.getContent());
+            }
+            throw e;
+        }
+        for (MailboxEntry msg : batch) {
+            if (added.contains(msg)) {
+                indexEntry(mailboxKey, msg);
+            } else {
+                releaseContent(msg.getContent());
+            }
+        }
+        return seq;
+    }
+
+    private void retainContent(MessageContent content) {
+        if (content.retain() == 1) {
+            bodyStore.retain(content.getBodyRef());
+        }
+    }
+
+    private void indexEntry(String mailboxKey, MailboxEntry msg) {
+        messageIndex.computeIfAbsent(msg.getId(), id -> new ConcurrentHashMap<>())
+                .put(mailboxKey, msg);
+    }
+
+    private boolean releaseContent(MessageContent content) {
+        if (content.release() > 0) return false;
+        bodyStore.release(content.getBodyRef());
+        if (content.getColdHeaders() instanceof ColdStore.Slot slot) {
+            coldStore.release(slot);
+        }
+        return true;
+    }
+
+    // Moves the headers of every message that is archived in all the mailboxes
+    // holding it to the cold store, Config.COLD_BLOCK_MESSAGES to a block. Only
+    // the ID, timestamp, body location and flags stay on heap; the headers are
+    // read back from the cold store whenever something asks for them. The
+    // sender's copy in SENT does not hold a message back: it keeps its LIST
+    // line on heap instead.
+    public int moveArchivedToCold() {
+        residency.readLock().lock();
+        try {
+            Set<MessageContent> pending = new LinkedHashSet<>();
+            int moved = 0;
+
+            for (Mailbox mailbox : userMessages.values()) {
+                for (MailboxEntry msg : mailbox) {
+                    MessageContent content = msg.getContent();
+                    if (!msg.isArchived() || content.isCold() || !readyForCold(content)) continue;
+                    pending.add(content);
+                    if (pending.size() >= Config.COLD_BLOCK_MESSAGES) {
+                        moved += freeze(pending);
+                        pending.clear();
+                    }
+                }
+            }
+            moved += freeze(pending);
+
+            if (moved > 0) {
+                System.out.println("🧊 Moved " + moved + " archived messages to cold storage");
+            }
+            return moved;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    private int freeze(Collection<MessageContent> batch) {
+        if (batch.isEmpty()) return 0;
+
+        List<MessageContent> contents = new ArrayList<>(batch);
+        List<MessageContent.Headers> headers = new ArrayList<>(contents.size());
+        for (MessageContent content : contents) {
+            headers.add(content.getHeaders());
+        }
+
+        List<ColdStore.Slot> slots;
+        try {
+            slots = coldStore.write(headers);
+        } catch (IOException e) {
+            System.err.println("❌ Failed to write cold block: " + e.getMessage());
+            return 0;
+        }
+
+        // a restore may have raced with the write; it warms the content under the
+        // same lock, so checking again here is enough
+        int moved = 0;
+        for (int i = 0; i < contents.size(); i++) {
+            MessageContent content = contents.get(i);
+            synchronized (content) {
+                if (!content.isCold() && content.getReferenceCount() > 0 && readyForCold(content)) {
+                    content.moveToCold(slots.get(i), stillListed(content));
+                    moved++;
+                    continue;
+                }
+            }
+            coldStore.release(slots.get(i));
+        }
+        return moved;
+    }
+
+    private boolean readyForCold(MessageContent content) {
+        Map<String, MailboxEntry> copies = messageIndex.get(content.getId());
+        if (copies == null) return false;
+        for (Map.Entry<String, MailboxEntry> copy : copies.entrySet()) {
+            if (!copy.getValue().isArchived() && !copy.getKey().endsWith("_sent")) return false;
+        }
+        return true;
+    }
+
+    private boolean stillListed(MessageContent content) {
+        Map<String, MailboxEntry> copies = messageIndex.get(content.getId());
+        if (copies == null) return false;
+        for (MailboxEntry copy : copies.values()) {
+            if (!copy.isArchived()) return true;
+        }
+        return false;
+    }
+
+    // A restored message is likely to be read again soon, so its headers come back on heap.
+    private void warmContent(MessageContent content) {
+        try {
+            if (content.warm() instanceof ColdStore.Slot slot) {
+                coldStore.release(slot);
+            }
+        } catch (IOException e) {
+            System.err.println("❌ Failed to bring " + content.getMessageId() + " back from cold storage: " +
+                    e.getMessage());
+        }
+    }
+
+    // The mailbox for key, read back from its file if it was evicted; null if
+    // there is none. Callers hold the residency read lock.
+    private Mailbox mailbox(String key) {
+        if (evicted.containsKey(key)) return reload(key);
+        Mailbox mailbox = userMessages.get(key);
+        if (mailbox != null) {
+            cacheHits.incrementAndGet();
+            mailbox.touch();
+        }
+        return mailbox;
+    }
+
+    private Mailbox mailboxForWrite(String key) {
+        Mailbox mailbox = mailbox(key);
+        return mailbox != null ? mailbox : userMessages.computeIfAbsent(key, Mailbox::new);
+    }
+
+    // The stub stays in evicted until the mailbox is complete, so other callers
+    // for the same key wait here instead of seeing it half replayed; different
+    // mailboxes reload in parallel.
+    private Mailbox reload(String key) {
+        EvictedMailbox stub = evicted.get(key);
+        if (stub == null) return userMessages.get(key);
+
+        synchronized (stub) {
+            if (stub.reloaded) return userMessages.get(key);
+
+            loadMailbox(key);
+            Mailbox mailbox = userMessages.computeIfAbsent(key, Mailbox::new);
+            loadSearchIndex(mailbox, new HashMap<>());
+            for (MailboxEntry msg : mailbox) {
+                // a copy that is not archived keeps shared headers out of cold storage
+                if (!msg.isArchived()) warmContent(msg.getContent());
+            }
+            for (BodyRef body : stub.pinned) {
+                bodyStore.release(body);
+            }
+            mailbox.touch();
+            stub.reloaded = true;
+            evicted.remove(key, stub);
+            cacheMisses.incrementAndGet();
+            System.out.println("📥 Reloaded mailbox " + key + " (" + mailbox.size() + " messages)");
+            return mailbox;
+        }
+    }
+
+    // Appends a new entry to an evicted mailbox's file, with the modseq the
+    // mailbox would have given it, and returns the store sequence. UNCHANGED
+    // when the mailbox is resident, and the caller adds the entry as usual.
+    private long appendToEvicted(String key, MailboxEntry entry) {
+        EvictedMailbox stub = evicted.get(key);
+        if (stub == null) return Mailbox.UNCHANGED;
+
+        synchronized (stub) {
+            if (stub.reloaded) return Mailbox.UNCHANGED;
+
+            entry.setModSeq(stub.modSeq + 1);
+            long seq = appendEntry(key, entry);
+            stub.modSeq++;
+            stub.records++;
+            stub.open = true;
+            if (!entry.isRead() && !entry.isArchived()) stub.unread++;
+            if (entry.isArchived()) stub.oldestArchived = Math.min(stub.oldestArchived, entry.getTimestamp());
+            BodyRef body = entry.getContent().getBodyRef();
+            bodyStore.retain(body);
+            stub.pinned.add(body);
+            return seq;
+        }
+    }
+
+    // Closes the files of evicted mailboxes, which makes them durable, and saves
+    // their search indexes so a reload need not rebuild them. This also closes
+    // the files that new mail reopened, so a server with many offline recipients
+    // does not keep a file open for each of them. A reload that gets in first
+    // reconciles the older index file instead.
+    private void closeEvictedLogs() {
+        for (Map.Entry<String, EvictedMailbox> entry : evicted.entrySet()) {
+            String key = entry.getKey();
+            EvictedMailbox stub = entry.getValue();
+            synchronized (stub) {
+                if (stub.reloaded) continue;
+                if (stub.unsaved != null) {
+                    try {
+                        if (stub.unsaved.isDirty()) stub.unsaved.save(indexFile(key));
+                    } catch (IOException e) {
+                        System.err.println("❌ Failed to save search index of " + key + ": " + e.getMessage());
+                    }
+                    stub.unsaved = null;
+                }
+                if (!stub.open) continue;
+                try {
+                    store.release(key);
+                    stub.open = false;
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to close mailbox " + key + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Starts loading a user's mailboxes in the background as soon as they say
+    // HELO, so it overlaps the AUTH round trip: evicted mailboxes are replayed
+    // (with their search index) and the first page of LIST lines is encoded.
+    // A LIST that arrives while the reload is still running waits for it.
+    public void prefetchUserMailboxes(String username) {
+        String userKey = username.toLowerCase();
+        if (!prefetching.add(userKey)) return;
+        try {
+            prefetcher.execute(() -> {
+                try {
+                    warmUserMailboxes(userKey);
+                } catch (RuntimeException e) {
+                    System.err.println("❌ Failed to prefetch mailboxes of " + userKey + ": " + e.getMessage());
+                } finally {
+                    prefetching.remove(userKey);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            prefetching.remove(userKey);
+        }
+    }
+
+    private void warmUserMailboxes(String userKey) {
+        residency.readLock().lock();
+        try {
+            for (String key : new String[]{userKey, userKey + "_sent"}) {
+                Mailbox mailbox = mailbox(key);
+                if (mailbox == null) continue;
+                int warmed = 0;
+                for (MailboxEntry msg : mailbox) {
+                    if (msg.isArchived()) continue;
+                    msg.getContent().getListLine();
+                    if (++warmed == Config.LIST_PAGE_MAX) break;
+                }
+            }
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
+
+    // Evicts mailboxes whose owner is not online, least recently used first,
+    // until the rest fit in Config.MAILBOX_CACHE_MAX_ENTRIES. Gives up for this
+    // round if mailboxes stay busy for longer than a short wait. Victims are only
+    // detached under the write lock; their files are closed after it is released.
+    public int evictIdleMailboxes(Predicate<String> online) {
+        int count = detachIdleMailboxes(online);
+        closeEvictedLogs();
+        return count;
+    }
+
+    private int detachIdleMailboxes(Predicate<String> online) {
+        try {
+            if (!residency.writeLock().tryLock(Config.MAILBOX_EVICT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+
+        try {
+            long resident = countAllMessages();
+            if (resident <= Config.MAILBOX_CACHE_MAX_ENTRIES) return 0;
+
+            List<Mailbox> idle = new ArrayList<>();
+            for (Mailbox mailbox : userMessages.values()) {
+                String key = mailbox.getKey();
+                String owner = key.endsWith("_sent") ? key.substring(0, key.length() - "_sent".length()) : key;
+                if (!online.test(owner)) idle.add(mailbox);
+            }
+            idle.sort(Comparator.comparingLong(Mailbox::getLastAccess));
+
+            int detached = 0;
+            for (Mailbox mailbox : idle) {
+                if (resident <= Config.MAILBOX_CACHE_MAX_ENTRIES) break;
+                evict(mailbox);
+                resident -= mailbox.size();
+                detached++;
+            }
+            evictions.addAndGet(detached);
+            return detached;
+        } finally {
+            residency.writeLock().unlock();
+        }
+    }
+
+    // The log file already holds everything in the mailbox, so dropping it from
+    // memory is enough; closeEvictedLogs writes out the file and search index.
+    private void evict(Mailbox mailbox) {
+        String key = mailbox.getKey();
+        List<BodyRef> pinned = new ArrayList<>(mailbox.size());
+        long oldestArchived = Long.MAX_VALUE;
+        for (MailboxEntry msg : mailbox) {
+            if (msg.isArchived()) oldestArchived = Math.min(oldestArchived, msg.getTimestamp());
+            BodyRef body = msg.getContent().getBodyRef();
+            bodyStore.retain(body);
+            pinned.add(body);
+            unindexEntry(key, msg);
+            releaseContent(msg.getContent());
+        }
+        evicted.put(key, new EvictedMailbox(pinned, mailbox.getModSeq(), mailbox.getUnreadCount(),
+                store.getRecordCount(key), oldestArchived, searchIndexes.remove(key)));
+        userMessages.remove(key);
+    }
+
+    public String getMailboxCacheSummary() {
+        return userMessages.size() + " mailboxes in memory (" + countAllMessages() + " entries), " +
+                evicted.size() + " evicted; " + cacheHits.get() + " hits, " + cacheMisses.get() +
+                " misses, " + evictions.get() + " evictions";
+    }
+
+    private MailboxEntry findEntry(String mailboxKey, long messageId) {
+        Map<String, MailboxEntry> copies = messageIndex.get(messageId);
+        return copies == null ? null : copies.get(mailboxKey);
+    }
+
+    private void unindexEntry(String mailboxKey, MailboxEntry msg) {
+        messageIndex.computeIfPresent(msg.getId(), (id, copies) -> {
+            copies.remove(mailboxKey, msg);
+            return copies.isEmpty() ? null : copies;
+        });
+    }
+
     private int countAllMessages() {
         return userMessages.values().stream()
-                .mapToInt(List::size)
+                .mapToInt(Mailbox::size)
                 .sum();
     }
 
-    private void saveMessages() {
+    private long appendEntry(String mailboxKey, MailboxEntry msg) {
+        try {
+            return store.appendEntry(mailboxKey, msg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The flag and removal records throw, so that Mailbox rolls the change back
+    // and the command that asked for it fails instead of answering OK.
+    private long appendMutation(byte op, String mailboxKey, long messageId, long modSeq) {
+        try {
+            return store.appendFlag(mailboxKey, op, messageId, modSeq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long appendMutations(byte op, String mailboxKey, List<Mailbox.Change> changes) {
+        try {
+            return store.appendFlags(mailboxKey, op, changes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void commitMutations(long seq) {
+        if (seq == Mailbox.UNCHANGED) return;
         try {
-            File file = new File(MESSAGES_FILE);
-            File parentDir = file.getParentFile();
+            store.commit(seq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Rewrites the files of mailboxes whose logs have grown well past their contents,
+    // evicted ones included, and saves any search index that changed since it was
+    // last written.
+    public int compactIfNeeded() {
+        residency.readLock().lock();
+        try {
+            saveSearchIndexes();
+
+            int compacted = 0;
+            for (Mailbox mailbox : userMessages.values()) {
+                if (!store.needsRewrite(mailbox.getKey(), mailbox.size(), Config.MAILBOX_COMPACT_MIN_RECORDS)) continue;
+                try {
+                    store.rewrite(mailbox);
+                    compacted++;
+                } catch (IOException e) {
+                    System.err.println("❌ Failed to compact mailbox " + mailbox.getKey() + ": " + e.getMessage());
+                }
+            }
+            for (Map.Entry<String, EvictedMailbox> entry : evicted.entrySet()) {
+                if (compactEvicted(entry.getKey(), entry.getValue())) compacted++;
+            }
+            if (compacted > 0) {
+                System.out.println("🗜️ Compacted " + compacted + " mailbox files");
+            }
+            return compacted;
+        } finally {
+            residency.readLock().unlock();
+        }
+    }
 
-            if (parentDir != null && !parentDir.exists()) {
-                parentDir.mkdirs();
+    // An evicted mailbox is compacted from its own file. The stub's monitor is
+    // only held to start and to finish the rewrite, so new mail for it is not
+    // held up while the file is read and the new one written.
+    private boolean compactEvicted(String key, EvictedMailbox stub) {
+        MailboxLog.Rewrite rewrite;
+        synchronized (stub) {
+            if (stub.reloaded || !MailboxLog.needsRewrite(stub.records, stub.pinned.size(),
+                    Config.MAILBOX_COMPACT_MIN_RECORDS)) {
+                return false;
             }
+            try {
+                rewrite = store.startRewrite(key);
+            } catch (IOException e) {
+                System.err.println("❌ Failed to compact mailbox " + key + ": " + e.getMessage());
+                return false;
+            } finally {
+                // the next eviction round closes the file again
+                stub.open = true;
+            }
+        }
 
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file))) {
-                oos.writeObject(userMessages);
-                System.out.println("💾 Saved " + countAllMessages() + " messages to disk");
+        try {
+            store.writeRewrite(rewrite);
+            synchronized (stub) {
+                store.finishRewrite(rewrite);
+                stub.records = rewrite.getRecords();
             }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            rewrite.abandon();
+            System.err.println("❌ Failed to compact mailbox " + key + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void close() {
+        prefetcher.shutdownNow();
+        exportPool.shutdown();
+        saveSearchIndexes();
+        closeEvictedLogs();
+        store.close();
+        coldStore.close();
+        try {
+            bodyStore.close();
         } catch (IOException e) {
-            System.err.println("❌ Failed to save messages: " + e.getMessage());
+            System.err.println("❌ Failed to close body store: " + e.getMessage());
         }
+        System.out.println("💾 Mailbox store closed (" + store.getMailboxCount() + " mailboxes)");
     }
 
     public void printAllMessages() {
-        System.out.println("\n" + "=".repeat(60));
-        System.out.println("📦 ALL MESSAGES IN DATABASE");
-        System.out.println("=".repeat(60));
-
-        for (Map.Entry<String, List<Message>> entry : userMessages.entrySet()) {
-            System.out.println("\n📁 Folder: " + entry.getKey() +
-                    " (" + entry.getValue().size() + " messages)");
-
-            for (Message msg : entry.getValue()) {
-                System.out.println("   📧 ID: " + msg.getMessageId() +
-                        " | From: " + msg.getFrom() +
-                        " | To: " + msg.getToAsString() +
-                        " | Subject: " + msg.getSubject() +
-                        " | Archived: " + (msg.isArchived() ? "✅" : "❌") +
-                        " | Read: " + (msg.isRead() ? "✅" : "❌"));
+        residency.readLock().lock();
+        try {
+            System.out.println("\n" + "=".repeat(60));
+            System.out.println("📦 ALL MESSAGES IN DATABASE");
+            System.out.println("=".repeat(60));
+
+            for (Mailbox mailbox : userMessages.values()) {
+                System.out.println("\n📁 Folder: " + mailbox.getKey() +
+                        " (" + mailbox.size() + " messages)");
+
+                for (MailboxEntry msg : mailbox) {
+                    System.out.println("   📧 ID: " + msg.getMessageId() +
+                            " | From: " + msg.getFrom() +
+                            " | To: " + msg.getToAsString() +
+                            " | Subject: " + msg.getSubject() +
+                            " | Archived: " + (msg.isArchived() ? "✅" : "❌") +
+                            " | Read: " + (msg.isRead() ? "✅" : "❌"));
+                }
             }
+            System.out.println("=".repeat(60) + "\n");
+        } finally {
+            residency.readLock().unlock();
         }
-        System.out.println("=".repeat(60) + "\n");
     }
+    public String getBodyCompressionSummary() {
+        return bodyStore.getCompressionSummary();
+    }
+
+    public String getColdStorageSummary() {
+        return coldStore.getLiveCount() + " archived messages in cold storage (" +
+                coldStore.getDiskBytes() + " bytes on disk)";
+    }
+
     public int getTotalMessagesCount() {
         return countAllMessages();
     }
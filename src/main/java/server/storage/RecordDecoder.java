@@ -0,0 +1,87 @@
+package server.storage;
+
+import server.models.BodyRef;
+import server.models.MessageContent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+// Reads back a payload produced by RecordEncoder.
+public class RecordDecoder {
+    private final byte[] buffer;
+    private int position = 0;
+
+    public RecordDecoder(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    public int readByte() throws IOException {
+        if (position >= buffer.length) throw new IOException("Record truncated");
+        return buffer[position++] & 0xFF;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || position + length > buffer.length) throw new IOException("Record truncated");
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, position, bytes, 0, length);
+        position += length;
+        return bytes;
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        if (length < 0 || position + length > buffer.length) throw new IOException("Record truncated");
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public List<String> readStrings() throws IOException {
+        int count = readVarInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString());
+        }
+        return values;
+    }
+
+    // The layout written by RecordEncoder.writeContent.
+    public MessageContent readContent() throws IOException {
+        long messageId = readVarLong();
+        String from = readString();
+        List<String> to = readStrings();
+        String subject = readString();
+        long timestamp = readVarLong();
+        int segment = readVarInt();
+        int offset = readVarInt();
+        int length = readVarInt();
+        int bodyLength = readVarInt();
+        byte codec = (byte) readByte();
+        byte[] digest = readBytes();
+        BodyRef body = new BodyRef(segment, offset, length, codec,
+                digest.length == 0 ? null : HexFormat.of().formatHex(digest));
+        return new MessageContent(messageId, from, to, subject, body, bodyLength, timestamp);
+    }
+
+    public boolean hasRemaining() {
+        return position < buffer.length;
+    }
+}
@@ -0,0 +1,102 @@
+package server.storage;
+
+import server.models.BodyRef;
+import server.models.MessageContent;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+// Builds one record payload: varint integers, length-prefixed UTF-8 strings.
+public class RecordEncoder {
+    private byte[] buffer;
+    private int size = 0;
+
+    public RecordEncoder() {
+        this(128);
+    }
+
+    public RecordEncoder(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    public RecordEncoder writeByte(int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public RecordEncoder writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public RecordEncoder writeVarInt(int value) {
+        return writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    public RecordEncoder writeBytes(byte[] bytes) {
+        writeVarInt(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    public RecordEncoder writeString(String value) {
+        return writeBytes((value == null ? "" : value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public RecordEncoder writeStrings(List<String> values) {
+        writeVarInt(values.size());
+        for (String value : values) {
+            writeString(value);
+        }
+        return this;
+    }
+
+    public RecordEncoder writeContent(MessageContent content) {
+        BodyRef body = content.getBodyRef();
+        writeVarLong(content.getId());
+        writeString(content.getFrom());
+        writeStrings(content.getToList());
+        writeString(content.getSubject());
+        writeVarLong(content.getTimestamp());
+        writeVarInt(body.segment());
+        writeVarInt(body.offset());
+        writeVarInt(body.length());
+        writeVarInt(content.getBodyLength());
+        writeByte(body.codec());
+        writeBytes(body.digest() == null ? new byte[0] : HexFormat.of().parseHex(body.digest()));
+        return this;
+    }
+
+    public RecordEncoder reset() {
+        size = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    byte[] array() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package server.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+// Reads files written by RecordWriter. next() returns null at a clean end of
+// file and also at the first torn or corrupt record; getValidLength() then
+// tells the caller where the intact prefix stops.
+public class RecordReader {
+    public static final int HEADER_LENGTH = 5;
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+
+    private final InputStream in;
+    private final CRC32 crc = new CRC32();
+    private long validLength = 0;
+    private boolean damaged = false;
+
+    public RecordReader(InputStream in) {
+        this.in = in;
+    }
+
+    public int readHeader(String magic) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        if (in.readNBytes(header, 0, HEADER_LENGTH) != HEADER_LENGTH
+                || !magic.equals(new String(header, 0, 4, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a " + magic + " file");
+        }
+        validLength = HEADER_LENGTH;
+        return header[4] & 0xFF;
+    }
+
+    public RecordDecoder next() throws IOException {
+        try {
+            int first = in.read();
+            if (first < 0) return null;
+
+            long length = 0;
+            int prefix = 0;
+            int b = first;
+            while (true) {
+                length |= (long) (b & 0x7F) << (7 * prefix);
+                prefix++;
+                if ((b & 0x80) == 0) break;
+                if (prefix == 5) return damaged();
+                b = in.read();
+                if (b < 0) return damaged();
+            }
+            if (length <= 0 || length > MAX_RECORD) return damaged();
+
+            byte[] payload = in.readNBytes((int) length);
+            byte[] trailer = in.readNBytes(4);
+            if (payload.length != length || trailer.length != 4) return damaged();
+
+            int expected = ((trailer[0] & 0xFF) << 24) | ((trailer[1] & 0xFF) << 16)
+                    | ((trailer[2] & 0xFF) << 8) | (trailer[3] & 0xFF);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != expected) return damaged();
+
+            validLength += prefix + length + 4;
+            return new RecordDecoder(payload);
+        } catch (EOFException e) {
+            return damaged();
+        }
+    }
+
+    public long getValidLength() {
+        return validLength;
+    }
+
+    public boolean isDamaged() {
+        return damaged;
+    }
+
+    private RecordDecoder damaged() {
+        damaged = true;
+        return null;
+    }
+}
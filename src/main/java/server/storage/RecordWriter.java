@@ -0,0 +1,52 @@
+package server.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+// Streams framed records: a 4-byte magic and version byte once per file, then
+// [varint length][payload][crc32] per record.
+public class RecordWriter {
+    private final OutputStream out;
+    private final CRC32 crc = new CRC32();
+    private final byte[] frame = new byte[10];
+
+    public RecordWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void writeHeader(String magic, int version) throws IOException {
+        byte[] bytes = magic.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length != 4) throw new IllegalArgumentException("Magic must be 4 bytes: " + magic);
+        out.write(bytes);
+        out.write(version);
+    }
+
+    public int write(RecordEncoder record) throws IOException {
+        int length = record.size();
+        int prefix = 0;
+        long value = length;
+        while ((value & ~0x7FL) != 0) {
+            frame[prefix++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        frame[prefix++] = (byte) value;
+
+        crc.reset();
+        crc.update(record.array(), 0, length);
+        int checksum = (int) crc.getValue();
+
+        out.write(frame, 0, prefix);
+        out.write(record.array(), 0, length);
+        out.write(checksum >>> 24);
+        out.write(checksum >>> 16);
+        out.write(checksum >>> 8);
+        out.write(checksum);
+        return prefix + length + 4;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,175 @@
+package server.storage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// Inverted index over one mailbox's subjects, senders and bodies: term -> (message
+// ID -> term frequency), plus the postings each message is in so it can be removed
+// again. A message's term frequencies live only in the postings.
+// The file written by save() is only a cache; MessageManager reconciles it with
+// the mailbox on load, so a missing or damaged file just means re-indexing.
+public class SearchIndex {
+    static final String MAGIC = "MLIX";
+    // 2 stores message IDs as varlongs; older files are simply rebuilt
+    static final int VERSION = 2;
+
+    private static final int MIN_TERM = 2;
+    private static final int MAX_TERM = 40;
+
+    public record Hit(long messageId, double score) { }
+
+    // The messages containing one term, with the term's frequency in each.
+    private static final class Posting {
+        final String term;
+        final Map<Long, Integer> counts = new HashMap<>();
+
+        Posting(String term) {
+            this.term = term;
+        }
+    }
+
+    private final Map<String, Posting> postings = new HashMap<>();
+    private final Map<Long, Posting[]> documents = new HashMap<>();
+    private boolean dirty = false;
+
+    // Lower-cased letter/digit runs with their counts.
+    public static Map<String, Integer> tokenize(String... texts) {
+        Map<String, Integer> terms = new HashMap<>();
+        for (String text : texts) {
+            if (text == null) continue;
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (word && start < 0) {
+                    start = i;
+                } else if (!word && start >= 0) {
+                    if (i - start >= MIN_TERM && i - start <= MAX_TERM) {
+                        terms.merge(text.substring(start, i).toLowerCase(Locale.ROOT), 1, Integer::sum);
+                    }
+                    start = -1;
+                }
+            }
+        }
+        return terms;
+    }
+
+    public synchronized void add(long messageId, Map<String, Integer> terms) {
+        if (documents.containsKey(messageId)) return;
+        Posting[] in = new Posting[terms.size()];
+        int i = 0;
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            Posting posting = postings.computeIfAbsent(term.getKey(), Posting::new);
+            posting.counts.put(messageId, term.getValue());
+            in[i++] = posting;
+        }
+        documents.put(messageId, in);
+        dirty = true;
+    }
+
+    public synchronized void remove(long messageId) {
+        Posting[] in = documents.remove(messageId);
+        if (in == null) return;
+        for (Posting posting : in) {
+            posting.counts.remove(messageId);
+            if (posting.counts.isEmpty()) postings.remove(posting.term);
+        }
+        dirty = true;
+    }
+
+    public synchronized boolean contains(long messageId) {
+        return documents.containsKey(messageId);
+    }
+
+    public synchronized Set<Long> messageIds() {
+        return new HashSet<>(documents.keySet());
+    }
+
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    // Messages containing every query term, scored by tf-idf; unordered.
+    public synchronized List<Hit> search(Collection<String> queryTerms) {
+        List<Map<Long, Integer>> lists = new ArrayList<>();
+        for (String term : queryTerms) {
+            Posting posting = postings.get(term);
+            if (posting == null) return List.of();
+            lists.add(posting.counts);
+        }
+        if (lists.isEmpty()) return List.of();
+        lists.sort(Comparator.comparingInt(Map::size));
+
+        int total = documents.size();
+        List<Hit> hits = new ArrayList<>();
+        for (Long messageId : lists.get(0).keySet()) {
+            double score = 0;
+            for (Map<Long, Integer> docs : lists) {
+                Integer tf = docs.get(messageId);
+                if (tf == null) {
+                    score = -1;
+                    break;
+                }
+                score += (1 + Math.log(tf)) * Math.log(1 + (double) total / docs.size());
+            }
+            if (score >= 0) hits.add(new Hit(messageId, score));
+        }
+        return hits;
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    public synchronized void save(File file) throws IOException {
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024)) {
+            RecordWriter writer = new RecordWriter(out);
+            RecordEncoder record = new RecordEncoder(512);
+            writer.writeHeader(MAGIC, VERSION);
+            for (Map.Entry<Long, Posting[]> doc : documents.entrySet()) {
+                record.reset().writeVarLong(doc.getKey()).writeVarInt(doc.getValue().length);
+                for (Posting posting : doc.getValue()) {
+                    record.writeString(posting.term).writeVarInt(posting.counts.get(doc.getKey()));
+                }
+                writer.write(record);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    // Loads whatever intact documents the file holds; an unreadable file yields an empty index.
+    public static SearchIndex load(File file) {
+        SearchIndex index = new SearchIndex();
+        if (!file.exists()) return index;
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            RecordReader reader = new RecordReader(in);
+            if (reader.readHeader(MAGIC) != VERSION) return index;
+
+            RecordDecoder record;
+            while ((record = reader.next()) != null) {
+                long messageId = record.readVarLong();
+                int count = record.readVarInt();
+                Map<String, Integer> terms = new HashMap<>(count * 2);
+                for (int i = 0; i < count; i++) {
+                    terms.put(record.readString(), record.readVarInt());
+                }
+                index.add(messageId, terms);
+            }
+        } catch (IOException e) {
+            System.out.println("⚠️ Search index " + file + " is unreadable (" + e.getMessage() + ") - rebuilding");
+            return new SearchIndex();
+        }
+        index.dirty = false;
+        return index;
+    }
+}
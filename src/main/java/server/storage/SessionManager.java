@@ -6,9 +6,13 @@ import server.models.UserSession;
 import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class SessionManager {
     private Map<String, UserSession> activeSessions;
+    // told the username of every new session
+    private final List<Consumer<String>> sessionListeners = new CopyOnWriteArrayList<>();
 
     public SessionManager() {
         this.activeSessions = new ConcurrentHashMap<>();
@@ -26,9 +30,16 @@ public class SessionManager {
         System.out.println("Created session for: " + username + " from " + ipAddress.getHostAddress() + " UDP:" + udpPort);
 
         printOnlineUsers();
+        for (Consumer<String> listener : sessionListeners) {
+            listener.accept(username);
+        }
         return session;
     }
 
+    public void addSessionListener(Consumer<String> listener) {
+        sessionListeners.add(listener);
+    }
+
     public void removeSession(String username) {
         UserSession removed = activeSessions.remove(username);
         if (removed != null) {
@@ -4,6 +4,39 @@ package server.utils;
 public class Config {
     public static final int TCP_PORT = 1234;
     public static final int UDP_PORT = 1235;
+    // 0-1023, distinct for every server sharing a message ID space
+    public static final int NODE_ID = 0;
     public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    // bodies at least this many bytes (UTF-8) are stored deflated when that saves space
+    public static final int BODY_COMPRESSION_THRESHOLD = 1024;
     public static final int CLEANUP_DAYS = 30;
-}
\ No newline at end of file
+    // archived messages whose headers are deflated together into one cold block
+    public static final int COLD_BLOCK_MESSAGES = 256;
+    // largest page a client may ask for with LIST ... LIMIT n
+    public static final int LIST_PAGE_MAX = 1000;
+    // expunge tombstones kept per mailbox for LIST ... CHANGEDSINCE
+    public static final int EXPUNGE_HISTORY = 1000;
+    // most matches returned by one SEARCH
+    public static final int SEARCH_MAX_RESULTS = 200;
+
+    // FSYNC = fsync every commit, GROUP = one fsync per GROUP_COMMIT_MILLIS window, ASYNC = don't wait
+    public static final String JOURNAL_DURABILITY = "GROUP";
+    public static final int GROUP_COMMIT_MILLIS = 5;
+    // a mailbox file is rewritten once it holds more than this many records and over two per live entry
+    public static final int MAILBOX_COMPACT_MIN_RECORDS = 256;
+    // mailbox entries kept in memory before idle users' mailboxes are evicted to their files
+    public static final int MAILBOX_CACHE_MAX_ENTRIES = 500_000;
+    // how long an eviction round waits for mailboxes to be free before skipping
+    public static final int MAILBOX_EVICT_WAIT_MILLIS = 50;
+    // background threads warming mailboxes after HELO, and how many warm-ups may queue
+    public static final int PREFETCH_THREADS = 2;
+    public static final int PREFETCH_QUEUE = 64;
+    // concurrent EXPORTs, how many more may wait, and the size of each "217 DATA" chunk
+    public static final int EXPORT_THREADS = 2;
+    public static final int EXPORT_QUEUE = 8;
+    public static final int EXPORT_CHUNK_BYTES = 64 * 1024;
+    // messages parsed together during an import, then written and committed as one batch
+    public static final int IMPORT_BATCH = 2000;
+    // files in data/import younger than this are left for the next scan
+    public static final int IMPORT_SETTLE_MILLIS = 10_000;
+}
@@ -0,0 +1,86 @@
+package server.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Message IDs are 64-bit longs: 41 bits of milliseconds since EPOCH, 10 bits of
+// node and 12 bits of sequence, so they sort by creation time and two nodes
+// never hand out the same one. On the wire they are 13 lower-case base-36
+// digits; the old "MSG_<millis>_<counter>" form is still accepted and maps onto
+// the same layout with the counter in the node and sequence bits.
+public final class MessageIds {
+    public static final long EPOCH = 1577836800000L; // 2020-01-01T00:00:00Z
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final int TEXT_LENGTH = 13;
+    private static final String LEGACY_PREFIX = "MSG_";
+
+    private MessageIds() { }
+
+    public static long timestamp(long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    public static String format(long id) {
+        String digits = Long.toString(id, 36);
+        return digits.length() >= TEXT_LENGTH ? digits : "0".repeat(TEXT_LENGTH - digits.length()) + digits;
+    }
+
+    // Throws IllegalArgumentException for anything that is not an ID in either form.
+    public static long parse(String text) {
+        if (text.startsWith(LEGACY_PREFIX)) {
+            int split = text.indexOf('_', LEGACY_PREFIX.length());
+            if (split < 0) throw new IllegalArgumentException("Invalid message ID: " + text);
+            long millis = Long.parseLong(text.substring(LEGACY_PREFIX.length(), split));
+            long counter = Long.parseLong(text.substring(split + 1));
+            return (Math.max(0, millis - EPOCH) << TIME_SHIFT) | (counter & ((1L << TIME_SHIFT) - 1));
+        }
+        if (text.isEmpty() || text.length() > TEXT_LENGTH) {
+            throw new IllegalArgumentException("Invalid message ID: " + text);
+        }
+        long id = Long.parseLong(text, 36);
+        if (id < 0) throw new IllegalArgumentException("Invalid message ID: " + text);
+        return id;
+    }
+
+    // Hands out strictly increasing IDs without locking. Within a millisecond the
+    // sequence counts up; once it runs out the generator borrows the next
+    // millisecond instead of waiting, and a clock that steps back is ignored.
+    public static final class Generator {
+        private final long node;
+        private final AtomicLong last = new AtomicLong();
+
+        public Generator(int node) {
+            if (node < 0 || node > MAX_NODE) throw new IllegalArgumentException("Node must be 0-" + MAX_NODE);
+            this.node = node;
+        }
+
+        public long next() {
+            while (true) {
+                long previous = last.get();
+                long previousMillis = previous >>> TIME_SHIFT;
+                long millis = Math.max(System.currentTimeMillis() - EPOCH, previousMillis);
+                long id = compose(millis, 0);
+                if (id <= previous) {
+                    // same millisecond as the last ID (or one observed from another node)
+                    long sequence = (previous & MAX_SEQUENCE) + 1;
+                    id = compose(previousMillis, sequence);
+                    if (sequence > MAX_SEQUENCE || id <= previous) id = compose(previousMillis + 1, 0);
+                }
+                if (last.compareAndSet(previous, id)) return id;
+            }
+        }
+
+        private long compose(long millis, long sequence) {
+            return (millis << TIME_SHIFT) | (node << SEQUENCE_BITS) | sequence;
+        }
+
+        // Makes every later ID larger than one already in use, e.g. after a restart.
+        public void observe(long id) {
+            last.accumulateAndGet(id, Math::max);
+        }
+    }
+}
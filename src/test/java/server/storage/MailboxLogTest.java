@@ -0,0 +1,198 @@
+package server.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import server.models.BodyRef;
+import server.models.MailboxEntry;
+import server.models.MessageContent;
+import server.utils.MessageIds;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MailboxLogTest {
+    private static final String DIGEST = "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff";
+    private static final String FIRST = "MSG_1700000000000_1";
+    private static final String SECOND = "MSG_1700000005000_2";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Two saves (the second read and archived), a READ of the first and a
+    // REMOVE of the second, after the META record a rewrite starts with.
+    private File writeFile() throws IOException {
+        File file = folder.newFile("bob.mbx");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            RecordWriter writer = new RecordWriter(out);
+            writer.writeHeader(MailboxLog.MAGIC, MailboxLog.VERSION);
+            writer.write(new RecordEncoder().writeByte(MailboxLog.OP_META).writeVarLong(2).writeVarLong(0));
+            writer.write(save(FIRST, 0, 1));
+            writer.write(save(SECOND, 3, 2));
+            writer.write(flag(MailboxLog.OP_READ, FIRST, 3));
+            writer.write(flag(MailboxLog.OP_REMOVE, SECOND, 4));
+        }
+        return file;
+    }
+
+    private static RecordEncoder save(String messageId, int flags, long modSeq) {
+        return new RecordEncoder().writeByte(MailboxLog.OP_SAVE).writeVarLong(MessageIds.parse(messageId))
+                .writeString("alice").writeStrings(List.of("bob", "carol")).writeString("subject of " + messageId)
+                .writeVarLong(MessageIds.timestamp(MessageIds.parse(messageId)))
+                .writeVarInt(1).writeVarInt(100).writeVarInt(40).writeVarInt(120)
+                .writeByte(BodyRef.CODEC_DEFLATE).writeBytes(HexFormat.of().parseHex(DIGEST))
+                .writeByte(flags).writeVarLong(modSeq);
+    }
+
+    private static RecordEncoder flag(byte op, String messageId, long modSeq) {
+        return new RecordEncoder().writeByte(op).writeVarLong(MessageIds.parse(messageId)).writeVarLong(modSeq);
+    }
+
+    private static List<MailboxLog.LogRecord> replay(MailboxLog log) throws IOException {
+        List<MailboxLog.LogRecord> records = new ArrayList<>();
+        log.replay(records::add);
+        return records;
+    }
+
+    @Test
+    public void replaysEveryRecordKind() throws IOException {
+        List<MailboxLog.LogRecord> records = replay(new MailboxLog("bob", writeFile()));
+        assertEquals(5, records.size());
+
+        assertEquals(MailboxLog.OP_META, records.get(0).op());
+        assertEquals(2, records.get(0).modSeq());
+
+        MailboxLog.LogRecord first = records.get(1);
+        assertEquals(MailboxLog.OP_SAVE, first.op());
+        assertEquals(MessageIds.parse(FIRST), first.messageId());
+        assertFalse(first.read());
+        assertFalse(first.archived());
+        assertEquals(1, first.modSeq());
+
+        MessageContent content = first.content();
+        assertEquals("alice", content.getFrom());
+        assertEquals(List.of("bob", "carol"), content.getToList());
+        assertEquals("subject of " + FIRST, content.getSubject());
+        assertEquals(1_700_000_000_000L, content.getTimestamp());
+        assertEquals(120, content.getBodyLength());
+        assertEquals(new BodyRef(1, 100, 40, BodyRef.CODEC_DEFLATE, DIGEST), content.getBodyRef());
+
+        MailboxLog.LogRecord second = records.get(2);
+        assertEquals(MessageIds.parse(SECOND), second.messageId());
+        assertTrue(second.read());
+        assertTrue(second.archived());
+
+        assertEquals(MailboxLog.OP_READ, records.get(3).op());
+        assertEquals(MessageIds.parse(FIRST), records.get(3).messageId());
+        assertEquals(MailboxLog.OP_REMOVE, records.get(4).op());
+        assertEquals(MessageIds.parse(SECOND), records.get(4).messageId());
+        assertEquals(4, records.get(4).modSeq());
+    }
+
+    @Test
+    public void otherVersionsAreSetAside() throws IOException {
+        File file = folder.newFile("bob.mbx");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            new RecordWriter(out).writeHeader(MailboxLog.MAGIC, MailboxLog.VERSION + 1);
+        }
+
+        assertEquals(0, replay(new MailboxLog("bob", file)).size());
+        assertFalse(file.exists());
+        assertTrue(new File(file.getPath() + ".unreadable").exists());
+    }
+
+    @Test
+    public void appendedRecordsRoundTrip() throws IOException {
+        File file = folder.newFile("bob.mbx");
+        MailboxLog log = new MailboxLog("bob", file);
+        long id = MessageIds.parse(FIRST);
+        MessageContent content = new MessageContent(id, "alice", List.of("bob"), "hello",
+                new BodyRef(2, 10, 5, BodyRef.CODEC_RAW, DIGEST), 5, 1_700_000_000_000L);
+        MailboxEntry entry = new MailboxEntry(content, true, false);
+        entry.setModSeq(7);
+        log.appendEntry(entry);
+        log.appendFlag(MailboxLog.OP_ARCHIVE, id, 8);
+        log.close();
+
+        List<MailboxLog.LogRecord> records = replay(new MailboxLog("bob", file));
+        assertEquals(2, records.size());
+        assertEquals(id, records.get(0).messageId());
+        assertTrue(records.get(0).read());
+        assertEquals(7, records.get(0).modSeq());
+        assertEquals(content.getBodyRef(), records.get(0).content().getBodyRef());
+        assertEquals(MailboxLog.OP_ARCHIVE, records.get(1).op());
+        assertEquals(8, records.get(1).modSeq());
+    }
+
+    @Test
+    public void rewriteCarriesOverAppendsMadeWhileItRuns() throws IOException {
+        File file = folder.newFile("bob.mbx");
+        MailboxLog log = new MailboxLog("bob", file);
+        long id = MessageIds.parse(FIRST);
+        MailboxEntry entry = new MailboxEntry(new MessageContent(id, "alice", List.of("bob"), "hello",
+                new BodyRef(2, 10, 5, BodyRef.CODEC_RAW, DIGEST), 5, 1_700_000_000_000L));
+        Mailbox mailbox = new Mailbox("bob");
+        mailbox.add(entry, 1);
+        log.appendEntry(entry);
+        log.appendFlag(MailboxLog.OP_ARCHIVE, id, 2);
+        log.appendFlag(MailboxLog.OP_RESTORE, id, 3);
+        mailbox.restoreModSeq(3, 0);
+
+        MailboxLog.Rewrite rewrite = log.new Rewrite();
+        Mailbox.Snapshot snapshot = mailbox.snapshot(rewrite::start);
+        log.appendFlag(MailboxLog.OP_READ, id, 4);
+        rewrite.write(snapshot, () -> { });
+        log.appendFlag(MailboxLog.OP_ARCHIVE, id, 5);
+        rewrite.finish(() -> { });
+        log.appendFlag(MailboxLog.OP_RESTORE, id, 6);
+        log.close();
+
+        assertEquals(4, rewrite.getRecords());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        List<MailboxLog.LogRecord> records = replay(new MailboxLog("bob", file));
+        assertEquals(List.of(MailboxLog.OP_META, MailboxLog.OP_SAVE, MailboxLog.OP_READ, MailboxLog.OP_ARCHIVE,
+                MailboxLog.OP_RESTORE), records.stream().map(MailboxLog.LogRecord::op).toList());
+        assertEquals(3, records.get(0).modSeq());
+        assertFalse(records.get(1).read());
+        assertEquals(6, records.get(4).modSeq());
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws IOException {
+        File file = writeFile();
+        long length = file.length();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length - 2);
+        }
+
+        List<MailboxLog.LogRecord> records = replay(new MailboxLog("bob", file));
+        assertEquals(4, records.size());
+        assertTrue(file.length() < length - 2);
+        assertEquals(length - 2, new File(file.getPath() + ".unreadable").length());
+        assertEquals(4, replay(new MailboxLog("bob", file)).size());
+    }
+
+    @Test
+    public void undecodableRecordEndsTheReplayAndIsKeptAside() throws IOException {
+        File file = writeFile();
+        long intact = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            RecordWriter writer = new RecordWriter(out);
+            // passes its CRC, but the message ID is missing
+            writer.write(new RecordEncoder().writeByte(MailboxLog.OP_READ));
+            writer.write(flag(MailboxLog.OP_READ, SECOND, 5));
+        }
+        long damaged = file.length();
+
+        assertEquals(5, replay(new MailboxLog("bob", file)).size());
+        assertEquals(intact, file.length());
+        assertEquals(damaged, new File(file.getPath() + ".unreadable").length());
+    }
+}
@@ -0,0 +1,120 @@
+package server.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import server.models.MailboxEntry;
+import server.models.Message;
+import server.utils.MessageIds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+// Migration of the Java-serialized messages.dat into per-mailbox files.
+// MessageManager works under ./data, which surefire points at target/.
+public class MigrationTest {
+    private static final String FIRST = "MSG_1700000000000_1";
+    private static final String SECOND = "MSG_1700000001000_2";
+
+    private final File data = new File("data");
+    private MessageManager manager;
+
+    // The layout the server used to save: one Message per recipient copy, and
+    // one in the sender's _sent folder carrying every recipient.
+    @Before
+    public void writeMessagesDat() throws IOException {
+        assertTrue("tests must run under target/", new File("").getAbsolutePath().contains("target"));
+        deleteData();
+        data.mkdirs();
+
+        Map<String, List<Message>> messages = new ConcurrentHashMap<>();
+        Message toBob = new Message(FIRST, "alice", "bob", "subject 1", "body 1", 1700000000000L);
+        toBob.setRead(true);
+        toBob.setArchived(true);
+        add(messages, "bob", toBob);
+        add(messages, "carol", new Message(FIRST, "alice", "carol", "subject 1", "body 1", 1700000000000L));
+        add(messages, "alice_sent", new Message(FIRST, "alice", List.of("bob", "carol"), "subject 1", "body 1",
+                1700000000000L));
+        add(messages, "bob", new Message(SECOND, "carol", "bob", "subject 2", "body 2", 1700000001000L));
+        add(messages, "carol_sent", new Message(SECOND, "carol", "bob", "subject 2", "body 2", 1700000001000L));
+
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream("data/messages.dat"))) {
+            out.writeObject(messages);
+        }
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (manager != null) manager.close();
+        deleteData();
+    }
+
+    private static void add(Map<String, List<Message>> messages, String key, Message msg) {
+        messages.computeIfAbsent(key, k -> new ArrayList<>()).add(msg);
+    }
+
+    private void deleteData() throws IOException {
+        if (!data.exists()) return;
+        try (Stream<Path> paths = Files.walk(data.toPath())) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String id(String legacy) {
+        return MessageIds.format(MessageIds.parse(legacy));
+    }
+
+    private void checkMigratedState() throws IOException {
+        assertEquals(List.of(id(SECOND)), manager.folderMessageIds("bob", "INBOX"));
+        assertEquals(List.of(id(FIRST)), manager.folderMessageIds("bob", "ARCHIVE"));
+        assertEquals(1, manager.getUnreadCount("bob"));
+        assertEquals(List.of(id(FIRST)), manager.folderMessageIds("carol", "INBOX"));
+        assertEquals(List.of(id(FIRST)), manager.folderMessageIds("alice", "SENT"));
+        assertEquals(List.of(id(SECOND)), manager.folderMessageIds("carol", "SENT"));
+
+        // the copies share one payload, with the sender's full recipient list
+        MailboxEntry first = manager.retrieveMessage(id(FIRST), "carol");
+        assertEquals(List.of("bob", "carol"), first.getToList());
+        assertEquals("subject 1", first.getSubject());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        manager.writeBody(first, body);
+        assertEquals("body 1" + System.lineSeparator(), body.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void messagesDatMovesIntoMailboxFiles() throws IOException {
+        manager = new MessageManager();
+        checkMigratedState();
+
+        assertTrue(new File("data/messages.dat.migrated").exists());
+        assertFalse(new File("data/messages.dat").exists());
+        for (String key : new String[]{"bob", "carol", "alice_sent", "carol_sent"}) {
+            assertTrue(key, new File("data/mailboxes/" + key + ".mbx").exists());
+        }
+    }
+
+    @Test
+    public void migratedMailboxesSurviveARestart() throws IOException {
+        manager = new MessageManager();
+        manager.close();
+
+        manager = new MessageManager();
+        checkMigratedState();
+    }
+}
@@ -0,0 +1,108 @@
+package server.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RecordReaderTest {
+    private static final String MAGIC = "TEST";
+
+    // header plus three records; ends[i] is where record i stops
+    private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+    private final long[] ends = new long[3];
+
+    private byte[] writeRecords() throws IOException {
+        RecordWriter writer = new RecordWriter(file);
+        writer.writeHeader(MAGIC, 7);
+        long position = RecordReader.HEADER_LENGTH;
+        for (int i = 0; i < ends.length; i++) {
+            position += writer.write(new RecordEncoder().writeVarLong(i).writeString("record " + i));
+            ends[i] = position;
+        }
+        return file.toByteArray();
+    }
+
+    private static RecordReader open(byte[] bytes) throws IOException {
+        RecordReader reader = new RecordReader(new ByteArrayInputStream(bytes));
+        assertEquals(7, reader.readHeader(MAGIC));
+        return reader;
+    }
+
+    @Test
+    public void readsEveryRecordOfAnIntactFile() throws IOException {
+        byte[] bytes = writeRecords();
+        RecordReader reader = open(bytes);
+
+        for (int i = 0; i < ends.length; i++) {
+            RecordDecoder record = reader.next();
+            assertNotNull(record);
+            assertEquals(i, record.readVarLong());
+            assertEquals("record " + i, record.readString());
+            assertEquals(ends[i], reader.getValidLength());
+        }
+        assertNull(reader.next());
+        assertFalse(reader.isDamaged());
+        assertEquals(bytes.length, reader.getValidLength());
+    }
+
+    @Test
+    public void stopsAtATornLastRecord() throws IOException {
+        byte[] bytes = writeRecords();
+        // cut at every point inside the last record
+        for (long cut = ends[1] + 1; cut < ends[2]; cut++) {
+            RecordReader reader = open(Arrays.copyOf(bytes, (int) cut));
+            assertNotNull(reader.next());
+            assertNotNull(reader.next());
+            assertNull(reader.next());
+            assertTrue("cut at " + cut, reader.isDamaged());
+            assertEquals(ends[1], reader.getValidLength());
+        }
+    }
+
+    @Test
+    public void stopsAtACorruptRecord() throws IOException {
+        byte[] bytes = writeRecords();
+        // last payload byte of the second record, just before its CRC
+        bytes[(int) ends[1] - 5] ^= 0x01;
+        RecordReader reader = open(bytes);
+
+        assertNotNull(reader.next());
+        assertNull(reader.next());
+        assertTrue(reader.isDamaged());
+        assertEquals(ends[0], reader.getValidLength());
+    }
+
+    @Test
+    public void rejectsAnImpossibleLength() throws IOException {
+        byte[] bytes = writeRecords();
+        // a length prefix of 0 where the second record starts
+        bytes[(int) ends[0]] = 0;
+        RecordReader reader = open(bytes);
+
+        assertNotNull(reader.next());
+        assertNull(reader.next());
+        assertTrue(reader.isDamaged());
+        assertEquals(ends[0], reader.getValidLength());
+    }
+
+    @Test
+    public void emptyFileAfterHeaderIsClean() throws IOException {
+        new RecordWriter(file).writeHeader(MAGIC, 7);
+        RecordReader reader = open(file.toByteArray());
+
+        assertNull(reader.next());
+        assertFalse(reader.isDamaged());
+        assertEquals(RecordReader.HEADER_LENGTH, reader.getValidLength());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAWrongMagic() throws IOException {
+        new RecordWriter(file).writeHeader("MLMB", 5);
+        new RecordReader(new ByteArrayInputStream(file.toByteArray())).readHeader(MAGIC);
+    }
+}
@@ -0,0 +1,107 @@
+package server.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageIdsTest {
+    private static final int TIME_SHIFT = 22;
+    private static final long MAX_SEQUENCE = 4095;
+
+    @Test
+    public void formatAndParseRoundTrip() {
+        MessageIds.Generator ids = new MessageIds.Generator(3);
+        for (int i = 0; i < 1000; i++) {
+            long id = ids.next();
+            String text = MessageIds.format(id);
+            assertEquals(13, text.length());
+            assertEquals(text.toLowerCase(), text);
+            assertEquals(id, MessageIds.parse(text));
+        }
+        assertEquals("0000000000000", MessageIds.format(0));
+        assertEquals(Long.MAX_VALUE, MessageIds.parse(MessageIds.format(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void idsAndTheirTextSortByCreationTime() {
+        MessageIds.Generator ids = new MessageIds.Generator(0);
+        List<Long> generated = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            generated.add(ids.next());
+        }
+        for (int i = 1; i < generated.size(); i++) {
+            long previous = generated.get(i - 1);
+            long id = generated.get(i);
+            assertTrue(id > previous);
+            assertTrue(MessageIds.format(id).compareTo(MessageIds.format(previous)) > 0);
+            assertTrue(MessageIds.timestamp(id) >= MessageIds.timestamp(previous));
+        }
+    }
+
+    @Test
+    public void timestampIsTheCreationTime() {
+        long before = System.currentTimeMillis();
+        long id = new MessageIds.Generator(0).next();
+        long after = System.currentTimeMillis();
+        assertTrue(MessageIds.timestamp(id) >= before);
+        assertTrue(MessageIds.timestamp(id) <= after);
+    }
+
+    @Test
+    public void nodeIsKeptInEveryId() {
+        MessageIds.Generator ids = new MessageIds.Generator(1023);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(1023, (ids.next() >>> 12) & 1023);
+        }
+    }
+
+    @Test
+    public void nodeOutsideTenBitsIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new MessageIds.Generator(1024));
+        assertThrows(IllegalArgumentException.class, () -> new MessageIds.Generator(-1));
+    }
+
+    @Test
+    public void exhaustedSequenceBorrowsTheNextMillisecond() {
+        // an ID with the last sequence number, far enough ahead of the clock to stay the latest
+        long millis = System.currentTimeMillis() - MessageIds.EPOCH + 60_000;
+        long full = (millis << TIME_SHIFT) | (7L << 12) | MAX_SEQUENCE;
+        MessageIds.Generator ids = new MessageIds.Generator(7);
+        ids.observe(full);
+
+        long next = ids.next();
+        assertTrue(next > full);
+        assertEquals(millis + 1 + MessageIds.EPOCH, MessageIds.timestamp(next));
+        assertEquals(0, next & MAX_SEQUENCE);
+        assertEquals(7, (next >>> 12) & 1023);
+    }
+
+    @Test
+    public void observedIdsAreNeverHandedOutAgain() {
+        MessageIds.Generator first = new MessageIds.Generator(1);
+        MessageIds.Generator second = new MessageIds.Generator(1);
+        long id = first.next();
+        second.observe(id);
+        assertTrue(second.next() > id);
+    }
+
+    @Test
+    public void legacyIdsKeepTheirTimestamp() {
+        long millis = 1_700_000_000_123L;
+        long id = MessageIds.parse("MSG_" + millis + "_42");
+        assertEquals(millis, MessageIds.timestamp(id));
+        assertEquals(42, id & ((1L << TIME_SHIFT) - 1));
+        assertTrue(MessageIds.parse("MSG_" + millis + "_43") > id);
+        assertTrue(MessageIds.parse("MSG_" + (millis + 1) + "_0") > MessageIds.parse("MSG_" + millis + "_4000"));
+    }
+
+    @Test
+    public void malformedIdsAreRejected() {
+        for (String text : new String[]{"", "00000000000000", "MSG_123", "MSG_x_1", "not an id", "-1"}) {
+            assertThrows(text, IllegalArgumentException.class, () -> MessageIds.parse(text));
+        }
+    }
+}